@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible data for benchmarks.
+ */
+final class BenchmarkData {
+
+    private static final int VOCABULARY_SIZE = 5000;
+
+    private BenchmarkData() {
+        // nothing
+    }
+
+    /**
+     * Creates a text of random words separated by spaces.
+     */
+    static String text(final int numOfWords, final long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder buf = new StringBuilder(numOfWords * 8);
+        for (int i = 0; i < numOfWords; i++) {
+            if (i > 0) {
+                buf.append(' ');
+            }
+            buf.append('w').append(random.nextInt(VOCABULARY_SIZE));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Creates random minhash values.
+     */
+    static byte[][] signatures(final int count, final int numOfBytes,
+            final long seed) {
+        final Random random = new Random(seed);
+        final byte[][] signatures = new byte[count][numOfBytes];
+        for (final byte[] signature : signatures) {
+            random.nextBytes(signature);
+        }
+        return signatures;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.benchmark;
+
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.codelibs.elasticsearch.minhash.index.query.MinHashSimilarityQuery;
+import org.elasticsearch.index.mapper.BinaryFieldMapper.CustomBinaryDocValuesField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a scan of doc values by {@link MinHashSimilarityQuery}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DocValuesScanBenchmark {
+
+    private static final String FIELD = "minhash_value";
+
+    @Param({ "100000" })
+    public int numOfDocs;
+
+    @Param({ "16", "64" })
+    public int numOfBytes;
+
+    @Param({ MinHashFieldMapper.DOC_VALUES_FORMAT_SORTED_SET,
+            MinHashFieldMapper.DOC_VALUES_FORMAT_BINARY })
+    public String docValuesFormat;
+
+    private byte[][] signatures;
+
+    private byte[] target;
+
+    private Directory directory;
+
+    private DirectoryReader reader;
+
+    private IndexSearcher searcher;
+
+    private MinHashSimilarityQuery query;
+
+    @Setup
+    public void setup() throws Exception {
+        signatures = BenchmarkData.signatures(numOfDocs, numOfBytes, 0);
+        target = signatures[numOfDocs / 2];
+
+        final boolean binary = MinHashFieldMapper.DOC_VALUES_FORMAT_BINARY
+                .equals(docValuesFormat);
+        directory = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(directory,
+                new IndexWriterConfig())) {
+            for (final byte[] signature : signatures) {
+                final Document doc = new Document();
+                if (binary) {
+                    doc.add(new CustomBinaryDocValuesField(FIELD, signature));
+                } else {
+                    doc.add(new SortedSetDocValuesField(FIELD, new BytesRef(
+                            Base64.getEncoder().encodeToString(signature))));
+                }
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+        final MinHashFieldType fieldType = new MinHashFieldType(FIELD,
+                MinHashFieldMapper.Defaults.FIELD_TYPE, false, false, true,
+                binary, false, 0, 0, null, Collections.emptyMap());
+        query = new MinHashSimilarityQuery(fieldType, target, 0.9f);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public int query() throws Exception {
+        return searcher.count(query);
+    }
+}
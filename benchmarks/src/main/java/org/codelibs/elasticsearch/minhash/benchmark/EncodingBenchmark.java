@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.benchmark;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+import org.codelibs.minhash.MinHash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares encodings of a minhash value used by the minhash field: Base64
+ * and a bit string.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EncodingBenchmark {
+
+    @Param({ "4", "16", "64" })
+    public int numOfBytes;
+
+    private byte[] signature;
+
+    private BytesRef base64;
+
+    private BytesRef bitString;
+
+    private byte[] bytes;
+
+    private char[] chars;
+
+    @Setup
+    public void setup() {
+        signature = BenchmarkData.signatures(1, numOfBytes, 0)[0];
+        base64 = new BytesRef(Base64.getEncoder().encodeToString(signature));
+        bitString = new BytesRef(MinHash.toBinaryString(signature));
+        bytes = new byte[numOfBytes + 2];
+        chars = new char[numOfBytes * 8];
+    }
+
+    @Benchmark
+    public String encodeBase64() {
+        return Base64.getEncoder().encodeToString(signature);
+    }
+
+    @Benchmark
+    public String encodeBitString() {
+        return MinHash.toBinaryString(signature);
+    }
+
+    @Benchmark
+    public char[] encodeBitStringToBuffer() {
+        SignatureUtils.toBitString(signature, signature.length, chars);
+        return chars;
+    }
+
+    @Benchmark
+    public int decodeBase64() {
+        return SignatureUtils.decodeBase64(base64, bytes);
+    }
+
+    @Benchmark
+    public int decodeBitString() {
+        return SignatureUtils.decodeBitString(bitString, bytes);
+    }
+}
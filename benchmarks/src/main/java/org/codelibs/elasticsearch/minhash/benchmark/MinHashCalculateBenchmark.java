@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.codelibs.elasticsearch.minhash.index.analysis.MinHashAccumulator;
+import org.codelibs.elasticsearch.minhash.index.analysis.MinHashSignatureTokenFilter;
+import org.codelibs.elasticsearch.minhash.index.analysis.OnePermutationMinHashAccumulator;
+import org.codelibs.elasticsearch.minhash.index.analysis.SingleHashMinHashAccumulator;
+import org.codelibs.minhash.MinHash;
+import org.codelibs.minhash.analysis.MinHashTokenFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.hash.HashFunction;
+
+/**
+ * Measures the cost of calculating a minhash value of a document, which is
+ * what the minhash token filter does for each document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MinHashCalculateBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int numOfWords;
+
+    @Param({ "32", "128", "256" })
+    public int size;
+
+    @Param({ "1", "2" })
+    public int bit;
+
+    @Param({ "classic", "single_hash", "one_permutation" })
+    public String hashStrategy;
+
+    private Analyzer analyzer;
+
+    private String text;
+
+    @Setup
+    public void setup() {
+        final HashFunction[] hashFunctions = MinHash.createHashFunctions(0,
+                size);
+        final int hashBit = bit;
+        final String strategy = hashStrategy;
+        analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(
+                    final String fieldName) {
+                final Tokenizer tokenizer = new StandardTokenizer();
+                if ("classic".equals(strategy)) {
+                    return new TokenStreamComponents(tokenizer,
+                            new MinHashTokenFilter(tokenizer, hashFunctions,
+                                    hashBit));
+                }
+                final MinHashAccumulator accumulator;
+                if ("single_hash".equals(strategy)) {
+                    accumulator = new SingleHashMinHashAccumulator(0, size,
+                            hashBit);
+                } else {
+                    accumulator = new OnePermutationMinHashAccumulator(0, size,
+                            hashBit);
+                }
+                return new TokenStreamComponents(tokenizer,
+                        new MinHashSignatureTokenFilter(tokenizer,
+                                accumulator));
+            }
+        };
+        text = BenchmarkData.text(numOfWords, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+    }
+
+    @Benchmark
+    public byte[] calculate() throws IOException {
+        return MinHash.calculate(analyzer, text);
+    }
+}
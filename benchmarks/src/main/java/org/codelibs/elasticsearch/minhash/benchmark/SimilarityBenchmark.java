@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+import org.codelibs.minhash.MinHash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares similarity calculation of minhash values on bytes and on long
+ * words.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SimilarityBenchmark {
+
+    @Param({ "100000" })
+    public int numOfDocs;
+
+    @Param({ "16", "64" })
+    public int numOfBytes;
+
+    private byte[][] signatures;
+
+    private long[][] words;
+
+    private byte[] target;
+
+    private long[] targetWords;
+
+    @Setup
+    public void setup() {
+        signatures = BenchmarkData.signatures(numOfDocs, numOfBytes, 0);
+        words = new long[numOfDocs][SignatureUtils.numWords(numOfBytes)];
+        for (int i = 0; i < numOfDocs; i++) {
+            SignatureUtils.toWords(signatures[i], numOfBytes, words[i]);
+        }
+        target = signatures[numOfDocs / 2];
+        targetWords = words[numOfDocs / 2];
+    }
+
+    @Benchmark
+    public int compareBytes() {
+        int count = 0;
+        for (final byte[] signature : signatures) {
+            if (MinHash.compare(target, signature) >= 0.9f) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int compareWords() {
+        int count = 0;
+        for (final long[] value : words) {
+            if (SignatureUtils.similarity(targetWords, value,
+                    numOfBytes) >= 0.9f) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
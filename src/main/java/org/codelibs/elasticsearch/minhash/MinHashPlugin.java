@@ -15,26 +15,131 @@
  */
 package org.codelibs.elasticsearch.minhash;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
+import org.apache.lucene.util.SetOnce;
+import org.codelibs.elasticsearch.minhash.action.MinHashComputeAction;
+import org.codelibs.elasticsearch.minhash.action.MinHashJoinAction;
+import org.codelibs.elasticsearch.minhash.action.MinHashShardJoinAction;
+import org.codelibs.elasticsearch.minhash.action.MinHashStatsAction;
+import org.codelibs.elasticsearch.minhash.action.TransportMinHashComputeAction;
+import org.codelibs.elasticsearch.minhash.action.TransportMinHashJoinAction;
+import org.codelibs.elasticsearch.minhash.action.TransportMinHashShardJoinAction;
+import org.codelibs.elasticsearch.minhash.action.TransportMinHashStatsAction;
+import org.codelibs.elasticsearch.minhash.cache.MinHashSignatureCache;
 import org.codelibs.elasticsearch.minhash.index.analysis.MinHashTokenFilterFactory;
 import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper;
+import org.codelibs.elasticsearch.minhash.index.query.MinHashKnnQueryBuilder;
+import org.codelibs.elasticsearch.minhash.index.query.MinHashSimilarityQueryBuilder;
+import org.codelibs.elasticsearch.minhash.ingest.MinHashProcessor;
+import org.codelibs.elasticsearch.minhash.rest.RestMinHashComputeAction;
+import org.codelibs.elasticsearch.minhash.rest.RestMinHashJoinAction;
+import org.codelibs.elasticsearch.minhash.rest.RestMinHashStatsAction;
+import org.codelibs.elasticsearch.minhash.search.aggregations.InternalMinHashClusters;
+import org.codelibs.elasticsearch.minhash.search.aggregations.MinHashClustersAggregationBuilder;
+import org.codelibs.elasticsearch.minhash.stats.MinHashStats;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.features.NodeFeature;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
 import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.shard.IndexEventListener;
 import org.elasticsearch.indices.analysis.AnalysisModule.AnalysisProvider;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
 
 public class MinHashPlugin extends Plugin
-        implements MapperPlugin, AnalysisPlugin {
+        implements MapperPlugin, AnalysisPlugin, SearchPlugin, ActionPlugin,
+        IngestPlugin {
+
+    private final MinHashSignatureCache signatureCache;
+
+    private final MinHashStats stats = new MinHashStats();
+
+    private final SetOnce<ThreadPool> threadPool = new SetOnce<>();
+
+    public MinHashPlugin(final Settings settings) {
+        signatureCache = new MinHashSignatureCache(settings);
+    }
+
+    @Override
+    public Collection<?> createComponents(final PluginServices services) {
+        threadPool.set(services.threadPool());
+        return List.of(signatureCache, stats);
+    }
+
+    @Override
+    public void onIndexModule(final IndexModule indexModule) {
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexRemoved(final Index index,
+                    final IndexSettings indexSettings,
+                    final IndexRemovalReason reason) {
+                stats.remove(index.getName());
+            }
+        });
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return List.of(MinHashSignatureCache.CACHE_SIZE_SETTING);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(
+            final Settings settings) {
+        return List.of(new FixedExecutorBuilder(settings,
+                MinHashFieldMapper.THREAD_POOL_NAME,
+                EsExecutors.allocatedProcessors(settings), 1000,
+                "thread_pool." + MinHashFieldMapper.THREAD_POOL_NAME,
+                EsExecutors.TaskTrackingConfig.DO_NOT_TRACK));
+    }
+
+    private ExecutorService executor() {
+        final ThreadPool pool = threadPool.get();
+        return pool != null
+                ? pool.executor(MinHashFieldMapper.THREAD_POOL_NAME)
+                : null;
+    }
 
     @Override
     public Map<String, AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
         final Map<String, AnalysisProvider<TokenFilterFactory>> extra = new HashMap<>();
-        extra.put("minhash", MinHashTokenFilterFactory::new);
+        extra.put("minhash",
+                (indexSettings, environment, name,
+                        settings) -> new MinHashTokenFilterFactory(
+                                indexSettings, environment, name, settings,
+                                stats));
         return extra;
     }
 
@@ -42,6 +147,62 @@ public class MinHashPlugin extends Plugin
     public Map<String, Mapper.TypeParser> getMappers() {
         return Collections.<String, Mapper.TypeParser> singletonMap(
                 MinHashFieldMapper.CONTENT_TYPE,
-                new MinHashFieldMapper.TypeParser());
+                new MinHashFieldMapper.TypeParser(signatureCache, stats,
+                        this::executor));
+    }
+
+    @Override
+    public Map<String, Processor.Factory> getProcessors(
+            final Processor.Parameters parameters) {
+        return Map.of(MinHashProcessor.TYPE,
+                new MinHashProcessor.Factory(parameters.analysisRegistry,
+                        parameters.client));
+    }
+
+    @Override
+    public List<QuerySpec<?>> getQueries() {
+        return List.of(
+                new QuerySpec<>(MinHashSimilarityQueryBuilder.NAME,
+                        MinHashSimilarityQueryBuilder::new,
+                        MinHashSimilarityQueryBuilder::fromXContent),
+                new QuerySpec<>(MinHashKnnQueryBuilder.NAME,
+                        MinHashKnnQueryBuilder::new,
+                        MinHashKnnQueryBuilder::fromXContent));
+    }
+
+    @Override
+    public List<AggregationSpec> getAggregations() {
+        return List.of(new AggregationSpec(
+                MinHashClustersAggregationBuilder.NAME,
+                MinHashClustersAggregationBuilder::new,
+                MinHashClustersAggregationBuilder::parse)
+                        .addResultReader(InternalMinHashClusters::new));
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return List.of(
+                new ActionHandler<>(MinHashComputeAction.INSTANCE,
+                        TransportMinHashComputeAction.class),
+                new ActionHandler<>(MinHashStatsAction.INSTANCE,
+                        TransportMinHashStatsAction.class),
+                new ActionHandler<>(MinHashJoinAction.INSTANCE,
+                        TransportMinHashJoinAction.class),
+                new ActionHandler<>(MinHashShardJoinAction.INSTANCE,
+                        TransportMinHashShardJoinAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(final Settings settings,
+            final NamedWriteableRegistry namedWriteableRegistry,
+            final RestController restController,
+            final ClusterSettings clusterSettings,
+            final IndexScopedSettings indexScopedSettings,
+            final SettingsFilter settingsFilter,
+            final IndexNameExpressionResolver indexNameExpressionResolver,
+            final Supplier<DiscoveryNodes> nodesInCluster,
+            final Predicate<NodeFeature> clusterSupportsFeature) {
+        return List.of(new RestMinHashComputeAction(),
+                new RestMinHashStatsAction(), new RestMinHashJoinAction());
     }
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.action;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.support.single.shard.SingleShardRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Calculates minhash values of texts without indexing them.
+ */
+public class MinHashComputeAction
+        extends ActionType<MinHashComputeAction.Response> {
+
+    public static final MinHashComputeAction INSTANCE = new MinHashComputeAction();
+
+    public static final String NAME = "indices:admin/minhash/compute";
+
+    private MinHashComputeAction() {
+        super(NAME);
+    }
+
+    public static class Request extends SingleShardRequest<Request> {
+
+        private String analyzer;
+
+        private String field;
+
+        private List<String> texts = Collections.emptyList();
+
+        public Request() {
+        }
+
+        public Request(final String index) {
+            super(index);
+        }
+
+        public Request(final StreamInput in) throws IOException {
+            super(in);
+            analyzer = in.readOptionalString();
+            field = in.readOptionalString();
+            final int size = in.readVInt();
+            texts = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                texts.add(in.readString());
+            }
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeOptionalString(analyzer);
+            out.writeOptionalString(field);
+            out.writeVInt(texts.size());
+            for (final String text : texts) {
+                out.writeString(text);
+            }
+        }
+
+        /**
+         * Sets an analyzer with a minhash token filter.
+         */
+        public Request analyzer(final String analyzer) {
+            this.analyzer = analyzer;
+            return this;
+        }
+
+        public String analyzer() {
+            return analyzer;
+        }
+
+        /**
+         * Sets a minhash field whose minhash analyzer is used.
+         */
+        public Request field(final String field) {
+            this.field = field;
+            return this;
+        }
+
+        public String field() {
+            return field;
+        }
+
+        public Request texts(final List<String> texts) {
+            this.texts = Objects.requireNonNull(texts);
+            return this;
+        }
+
+        public List<String> texts() {
+            return texts;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (index == null) {
+                validationException = addValidationError("index is missing",
+                        validationException);
+            }
+            if ((analyzer == null) == (field == null)) {
+                validationException = addValidationError(
+                        "either analyzer or field is required",
+                        validationException);
+            }
+            if (texts.isEmpty()) {
+                validationException = addValidationError("texts is missing",
+                        validationException);
+            }
+            return validationException;
+        }
+    }
+
+    public static class Response extends ActionResponse
+            implements ToXContentObject {
+
+        private final List<String> signatures;
+
+        /**
+         * @param signatures minhash values in the order of texts, or null
+         *            for a text without tokens
+         */
+        public Response(final List<String> signatures) {
+            this.signatures = signatures;
+        }
+
+        public Response(final StreamInput in) throws IOException {
+            final int size = in.readVInt();
+            signatures = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                signatures.add(in.readOptionalString());
+            }
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            out.writeVInt(signatures.size());
+            for (final String signature : signatures) {
+                out.writeOptionalString(signature);
+            }
+        }
+
+        public List<String> getSignatures() {
+            return signatures;
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder,
+                final Params params) throws IOException {
+            builder.startObject();
+            builder.startArray("signatures");
+            for (final String signature : signatures) {
+                builder.value(signature);
+            }
+            builder.endArray();
+            builder.endObject();
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.action;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.IndicesRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Finds pairs of similar documents in an index. Each shard joins its
+ * documents by LSH bands of a minhash field, and verifies candidate pairs by
+ * the similarity of their minhash values. Pairs of documents in different
+ * shards are not found.
+ */
+public class MinHashJoinAction extends ActionType<MinHashJoinAction.Response> {
+
+    public static final MinHashJoinAction INSTANCE = new MinHashJoinAction();
+
+    public static final String NAME = "indices:data/read/minhash/join";
+
+    public static final float DEFAULT_MIN_SIMILARITY = 0.9f;
+
+    public static final int DEFAULT_MAX_PAIRS = 10000;
+
+    /** pairs in the descending order of similarity, and then by ids */
+    public static final Comparator<Pair> ORDER = Comparator
+            .comparing((final Pair pair) -> -pair.similarity)
+            .thenComparing(pair -> pair.id1).thenComparing(pair -> pair.id2);
+
+    private MinHashJoinAction() {
+        super(NAME);
+    }
+
+    public static class Request extends ActionRequest
+            implements IndicesRequest {
+
+        private String index;
+
+        private String field;
+
+        private float minSimilarity = DEFAULT_MIN_SIMILARITY;
+
+        private int bands;
+
+        private int rows;
+
+        private int maxPairs = DEFAULT_MAX_PAIRS;
+
+        public Request(final String index) {
+            this.index = index;
+        }
+
+        public Request(final StreamInput in) throws IOException {
+            super(in);
+            index = in.readString();
+            field = in.readString();
+            minSimilarity = in.readFloat();
+            bands = in.readVInt();
+            rows = in.readVInt();
+            maxPairs = in.readVInt();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(index);
+            out.writeString(field);
+            out.writeFloat(minSimilarity);
+            out.writeVInt(bands);
+            out.writeVInt(rows);
+            out.writeVInt(maxPairs);
+        }
+
+        public Request index(final String index) {
+            this.index = index;
+            return this;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        @Override
+        public String[] indices() {
+            return new String[] { index };
+        }
+
+        @Override
+        public IndicesOptions indicesOptions() {
+            return IndicesOptions.strictSingleIndexNoExpandForbidClosed();
+        }
+
+        /**
+         * Sets a minhash field to join.
+         */
+        public Request field(final String field) {
+            this.field = field;
+            return this;
+        }
+
+        public String field() {
+            return field;
+        }
+
+        public Request minSimilarity(final float minSimilarity) {
+            this.minSimilarity = minSimilarity;
+            return this;
+        }
+
+        public float minSimilarity() {
+            return minSimilarity;
+        }
+
+        /**
+         * Sets LSH bands to find candidate pairs. The LSH bands of the field
+         * are used by default.
+         */
+        public Request lsh(final int bands, final int rows) {
+            this.bands = bands;
+            this.rows = rows;
+            return this;
+        }
+
+        public int bands() {
+            return bands;
+        }
+
+        public int rows() {
+            return rows;
+        }
+
+        public Request maxPairs(final int maxPairs) {
+            this.maxPairs = maxPairs;
+            return this;
+        }
+
+        public int maxPairs() {
+            return maxPairs;
+        }
+
+        @Override
+        public Task createTask(final long id, final String type,
+                final String action, final TaskId parentTaskId,
+                final Map<String, String> headers) {
+            // cancels shard requests
+            return new CancellableTask(id, type, action, getDescription(),
+                    parentTaskId, headers);
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (index == null) {
+                validationException = addValidationError("index is missing",
+                        validationException);
+            }
+            if (field == null) {
+                validationException = addValidationError("field is missing",
+                        validationException);
+            }
+            if (minSimilarity < 0 || minSimilarity > 1) {
+                validationException = addValidationError(
+                        "min_similarity must be between 0 and 1",
+                        validationException);
+            }
+            if (bands < 0 || rows < 0 || (bands > 0) != (rows > 0)) {
+                validationException = addValidationError(
+                        "bands and rows must be positive and set together",
+                        validationException);
+            }
+            if (maxPairs < 1) {
+                validationException = addValidationError(
+                        "max_pairs must be positive", validationException);
+            }
+            return validationException;
+        }
+    }
+
+    /**
+     * A pair of similar documents. The first id is smaller than the second
+     * one.
+     */
+    public static class Pair implements Writeable, ToXContentObject {
+
+        private final String id1;
+
+        private final String id2;
+
+        private final float similarity;
+
+        public Pair(final String id1, final String id2,
+                final float similarity) {
+            if (id1.compareTo(id2) <= 0) {
+                this.id1 = id1;
+                this.id2 = id2;
+            } else {
+                this.id1 = id2;
+                this.id2 = id1;
+            }
+            this.similarity = similarity;
+        }
+
+        public Pair(final StreamInput in) throws IOException {
+            id1 = in.readString();
+            id2 = in.readString();
+            similarity = in.readFloat();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            out.writeString(id1);
+            out.writeString(id2);
+            out.writeFloat(similarity);
+        }
+
+        public String getId1() {
+            return id1;
+        }
+
+        public String getId2() {
+            return id2;
+        }
+
+        public float getSimilarity() {
+            return similarity;
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder,
+                final Params params) throws IOException {
+            builder.startObject();
+            builder.field("id1", id1);
+            builder.field("id2", id2);
+            builder.field("similarity", similarity);
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    public static class Response extends ActionResponse
+            implements ToXContentObject {
+
+        private final int totalShards;
+
+        private final long totalPairs;
+
+        private final boolean truncated;
+
+        private final List<Pair> pairs;
+
+        /**
+         * @param totalPairs the number of pairs found before truncation
+         * @param truncated true if a shard stopped joining at the maximum
+         *            number of pairs
+         */
+        public Response(final int totalShards, final long totalPairs,
+                final boolean truncated, final List<Pair> pairs) {
+            this.totalShards = totalShards;
+            this.totalPairs = totalPairs;
+            this.truncated = truncated;
+            this.pairs = pairs;
+        }
+
+        public Response(final StreamInput in) throws IOException {
+            totalShards = in.readVInt();
+            totalPairs = in.readVLong();
+            truncated = in.readBoolean();
+            pairs = in.readCollectionAsList(Pair::new);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            out.writeVInt(totalShards);
+            out.writeVLong(totalPairs);
+            out.writeBoolean(truncated);
+            out.writeCollection(pairs);
+        }
+
+        public int getTotalShards() {
+            return totalShards;
+        }
+
+        public long getTotalPairs() {
+            return totalPairs;
+        }
+
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public List<Pair> getPairs() {
+            return pairs;
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder,
+                final Params params) throws IOException {
+            builder.startObject();
+            builder.field("total_shards", totalShards);
+            builder.field("total_pairs", totalPairs);
+            builder.field("truncated", truncated);
+            builder.startArray("pairs");
+            for (final Pair pair : pairs) {
+                pair.toXContent(builder, params);
+            }
+            builder.endArray();
+            builder.endObject();
+            return builder;
+        }
+    }
+}
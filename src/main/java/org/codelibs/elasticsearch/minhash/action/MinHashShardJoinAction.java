@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.action;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.support.single.shard.SingleShardRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+
+/**
+ * Joins documents of a shard for {@link MinHashJoinAction}.
+ */
+public class MinHashShardJoinAction
+        extends ActionType<MinHashShardJoinAction.Response> {
+
+    public static final MinHashShardJoinAction INSTANCE = new MinHashShardJoinAction();
+
+    public static final String NAME = MinHashJoinAction.NAME + "[s]";
+
+    private MinHashShardJoinAction() {
+        super(NAME);
+    }
+
+    public static class Request extends SingleShardRequest<Request> {
+
+        private final int shardId;
+
+        private final MinHashJoinAction.Request joinRequest;
+
+        /** the task of the request on the node which joins the shard */
+        private CancellableTask task;
+
+        public Request(final String index, final int shardId,
+                final MinHashJoinAction.Request joinRequest) {
+            super(index);
+            this.shardId = shardId;
+            this.joinRequest = joinRequest;
+        }
+
+        public Request(final StreamInput in) throws IOException {
+            super(in);
+            shardId = in.readVInt();
+            joinRequest = new MinHashJoinAction.Request(in);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(shardId);
+            joinRequest.writeTo(out);
+        }
+
+        public int shardId() {
+            return shardId;
+        }
+
+        public MinHashJoinAction.Request joinRequest() {
+            return joinRequest;
+        }
+
+        /**
+         * Returns the task registered for the request, which is cancelled
+         * with the join request.
+         */
+        CancellableTask task() {
+            return task;
+        }
+
+        @Override
+        public Task createTask(final long id, final String type,
+                final String action, final TaskId parentTaskId,
+                final Map<String, String> headers) {
+            // the shard operation does not receive the task
+            task = new CancellableTask(id, type, action, getDescription(),
+                    parentTaskId, headers);
+            return task;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            return joinRequest.validate();
+        }
+    }
+
+    public static class Response extends ActionResponse {
+
+        private final long totalPairs;
+
+        private final boolean truncated;
+
+        private final List<MinHashJoinAction.Pair> pairs;
+
+        public Response(final long totalPairs, final boolean truncated,
+                final List<MinHashJoinAction.Pair> pairs) {
+            this.totalPairs = totalPairs;
+            this.truncated = truncated;
+            this.pairs = pairs;
+        }
+
+        public Response(final StreamInput in) throws IOException {
+            totalPairs = in.readVLong();
+            truncated = in.readBoolean();
+            pairs = in.readCollectionAsList(MinHashJoinAction.Pair::new);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            out.writeVLong(totalPairs);
+            out.writeBoolean(truncated);
+            out.writeCollection(pairs);
+        }
+
+        public long getTotalPairs() {
+            return totalPairs;
+        }
+
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public List<MinHashJoinAction.Pair> getPairs() {
+            return pairs;
+        }
+    }
+}
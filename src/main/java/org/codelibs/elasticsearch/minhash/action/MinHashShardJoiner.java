@@ -0,0 +1,367 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.action;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IntroSorter;
+import org.codelibs.elasticsearch.minhash.index.fielddata.MinHashSignatureValues;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.FloatArray;
+import org.elasticsearch.common.util.IntArray;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.core.Releasable;
+import org.elasticsearch.core.Releasables;
+import org.elasticsearch.index.mapper.IdFieldMapper;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.tasks.CancellableTask;
+
+/**
+ * Joins documents of a shard by LSH bands. For each band, documents are
+ * sorted by the hash of the band, and documents with the same hash are
+ * compared. A pair is compared only in the first band they share, so each
+ * pair is verified once.
+ *
+ * Minhash values, band hashes and found pairs are kept in {@link BigArrays},
+ * so they are accounted by the request circuit breaker. A band shared by many
+ * documents needs many comparisons, so the task is checked for cancellation
+ * every {@link #CHECK_INTERVAL} comparisons.
+ */
+final class MinHashShardJoiner implements Releasable {
+
+    static final int CHECK_INTERVAL = 1024;
+
+    private final BigArrays bigArrays;
+
+    private final CancellableTask task;
+
+    private final int bands;
+
+    private final int rows;
+
+    private final float minSimilarity;
+
+    private final int maxPairs;
+
+    /** minhash values packed into words */
+    private LongArray words;
+
+    /** the top-level doc id of each node */
+    private IntArray docs;
+
+    private int numNodes;
+
+    private int numBytes = -1;
+
+    private int numWords;
+
+    /** top-level doc ids of found pairs, two per pair */
+    private IntArray pairDocs;
+
+    private FloatArray similarities;
+
+    private int numPairs;
+
+    private boolean truncated;
+
+    MinHashShardJoiner(final BigArrays bigArrays, final CancellableTask task,
+            final int bands, final int rows, final float minSimilarity,
+            final int maxPairs) {
+        this.bigArrays = bigArrays;
+        this.task = task;
+        this.bands = bands;
+        this.rows = rows;
+        this.minSimilarity = minSimilarity;
+        this.maxPairs = maxPairs;
+        boolean success = false;
+        try {
+            words = bigArrays.newLongArray(1, false);
+            docs = bigArrays.newIntArray(1, false);
+            pairDocs = bigArrays.newIntArray(2, false);
+            similarities = bigArrays.newFloatArray(1, false);
+            success = true;
+        } finally {
+            if (!success) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Reads minhash values of live documents.
+     */
+    void collect(final IndexReader reader, final MinHashFieldType fieldType)
+            throws IOException {
+        for (final LeafReaderContext context : reader.leaves()) {
+            final MinHashSignatureValues values = MinHashSignatureValues
+                    .load(context.reader(), fieldType);
+            final Bits liveDocs = context.reader().getLiveDocs();
+            final DocIdSetIterator iterator = values.iterator();
+            for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator
+                    .nextDoc()) {
+                if (doc % CHECK_INTERVAL == 0) {
+                    task.ensureNotCancelled();
+                }
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                values.decode();
+                if (numBytes < 0) {
+                    numBytes = values.numBytes();
+                    numWords = SignatureUtils.numWords(numBytes);
+                } else if (values.numBytes() != numBytes) {
+                    // values of another size are never similar
+                    continue;
+                }
+                final int node = numNodes++;
+                docs = bigArrays.grow(docs, numNodes);
+                docs.set(node, context.docBase + doc);
+                words = bigArrays.grow(words, (long) numNodes * numWords);
+                for (int i = 0; i < numWords; i++) {
+                    words.set((long) node * numWords + i, values.words()[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds similar pairs until the maximum number of pairs.
+     */
+    void join() {
+        if (numNodes < 2) {
+            return;
+        }
+        final int numBits = numBytes * 8;
+        final int numBands = Math.min(bands, numBits / rows);
+        final int limit = SignatureUtils.maxDifferentBits(numBits,
+                minSimilarity);
+        final long[] words1 = new long[numWords];
+        final long[] words2 = new long[numWords];
+        long comparisons = 0;
+        try (LongArray bandHashes = bandHashes(numBands);
+                LongArray keys = bigArrays.newLongArray(numNodes, false);
+                IntArray nodes = bigArrays.newIntArray(numNodes, false)) {
+            for (int band = 0; band < numBands; band++) {
+                for (int node = 0; node < numNodes; node++) {
+                    keys.set(node,
+                            bandHashes.get((long) node * numBands + band));
+                    nodes.set(node, node);
+                }
+                sort(keys, nodes);
+                int start = 0;
+                while (start < numNodes) {
+                    final long key = keys.get(start);
+                    int end = start + 1;
+                    while (end < numNodes && keys.get(end) == key) {
+                        end++;
+                    }
+                    for (int i = start; i < end - 1; i++) {
+                        final int node1 = nodes.get(i);
+                        load(node1, words1);
+                        for (int j = i + 1; j < end; j++) {
+                            if (++comparisons % CHECK_INTERVAL == 0) {
+                                task.ensureNotCancelled();
+                            }
+                            final int node2 = nodes.get(j);
+                            if (sharesEarlierBand(bandHashes, numBands, node1,
+                                    node2, band)) {
+                                continue;
+                            }
+                            load(node2, words2);
+                            final int distance = SignatureUtils
+                                    .countDifferentBits(words1, words2,
+                                            numWords, limit);
+                            if (distance > limit) {
+                                continue;
+                            }
+                            if (numPairs >= maxPairs) {
+                                truncated = true;
+                                return;
+                            }
+                            addPair(docs.get(node1), docs.get(node2),
+                                    (float) (numBits - distance) / numBits);
+                        }
+                    }
+                    start = end;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates hashes of all bands of each node once, so that a candidate
+     * pair is checked for an earlier shared band without hashing.
+     */
+    private LongArray bandHashes(final int numBands) {
+        final LongArray bandHashes = bigArrays
+                .newLongArray((long) numNodes * numBands, false);
+        boolean success = false;
+        try {
+            final long[] values = new long[numWords];
+            for (int node = 0; node < numNodes; node++) {
+                if (node % CHECK_INTERVAL == 0) {
+                    task.ensureNotCancelled();
+                }
+                load(node, values);
+                for (int band = 0; band < numBands; band++) {
+                    bandHashes.set((long) node * numBands + band,
+                            SignatureUtils.bandHash(values, band, rows));
+                }
+            }
+            success = true;
+            return bandHashes;
+        } finally {
+            if (!success) {
+                bandHashes.close();
+            }
+        }
+    }
+
+    private static boolean sharesEarlierBand(final LongArray bandHashes,
+            final int numBands, final int node1, final int node2,
+            final int band) {
+        final long offset1 = (long) node1 * numBands;
+        final long offset2 = (long) node2 * numBands;
+        for (int i = 0; i < band; i++) {
+            if (bandHashes.get(offset1 + i) == bandHashes.get(offset2 + i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addPair(final int doc1, final int doc2,
+            final float similarity) {
+        pairDocs = bigArrays.grow(pairDocs, 2L * (numPairs + 1));
+        similarities = bigArrays.grow(similarities, numPairs + 1L);
+        pairDocs.set(2L * numPairs, doc1);
+        pairDocs.set(2L * numPairs + 1, doc2);
+        similarities.set(numPairs, similarity);
+        numPairs++;
+    }
+
+    private void load(final int node, final long[] dest) {
+        final long offset = (long) node * numWords;
+        for (int i = 0; i < numWords; i++) {
+            dest[i] = words.get(offset + i);
+        }
+    }
+
+    private void sort(final LongArray keys, final IntArray nodes) {
+        new IntroSorter() {
+            private long pivot;
+
+            @Override
+            protected void setPivot(final int i) {
+                pivot = keys.get(i);
+            }
+
+            @Override
+            protected int comparePivot(final int j) {
+                return Long.compare(pivot, keys.get(j));
+            }
+
+            @Override
+            protected int compare(final int i, final int j) {
+                return Long.compare(keys.get(i), keys.get(j));
+            }
+
+            @Override
+            protected void swap(final int i, final int j) {
+                final long key = keys.get(i);
+                keys.set(i, keys.get(j));
+                keys.set(j, key);
+                final int node = nodes.get(i);
+                nodes.set(i, nodes.get(j));
+                nodes.set(j, node);
+            }
+        }.sort(0, numNodes);
+    }
+
+    boolean truncated() {
+        return truncated;
+    }
+
+    /**
+     * Returns the found pairs with ids of the documents.
+     */
+    List<MinHashJoinAction.Pair> pairs(final IndexReader reader)
+            throws IOException {
+        final Map<Integer, String> ids = new HashMap<>();
+        final List<MinHashJoinAction.Pair> result = new ArrayList<>(
+                numPairs);
+        for (int i = 0; i < numPairs; i++) {
+            result.add(new MinHashJoinAction.Pair(
+                    id(reader, pairDocs.get(2L * i), ids),
+                    id(reader, pairDocs.get(2L * i + 1), ids),
+                    similarities.get(i)));
+        }
+        return result;
+    }
+
+    private static String id(final IndexReader reader, final int doc,
+            final Map<Integer, String> ids) throws IOException {
+        String id = ids.get(doc);
+        if (id == null) {
+            final List<LeafReaderContext> leaves = reader.leaves();
+            final LeafReaderContext context = leaves
+                    .get(ReaderUtil.subIndex(doc, leaves));
+            final IdVisitor visitor = new IdVisitor();
+            context.reader().storedFields().document(doc - context.docBase,
+                    visitor);
+            id = visitor.id;
+            ids.put(doc, id);
+        }
+        return id;
+    }
+
+    private static class IdVisitor extends StoredFieldVisitor {
+
+        String id;
+
+        @Override
+        public Status needsField(final FieldInfo fieldInfo) {
+            if (IdFieldMapper.NAME.equals(fieldInfo.name)) {
+                return Status.YES;
+            }
+            return id != null ? Status.STOP : Status.NO;
+        }
+
+        @Override
+        public void binaryField(final FieldInfo fieldInfo,
+                final byte[] value) {
+            id = Uid.decodeId(value);
+        }
+    }
+
+    @Override
+    public void close() {
+        Releasables.close(words, docs, pairDocs, similarities);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.action;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.codelibs.elasticsearch.minhash.cache.MinHashSignatureCache;
+import org.codelibs.elasticsearch.minhash.stats.MinHashStats;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Returns counters of minhash calculation on each node.
+ */
+public class MinHashStatsAction
+        extends ActionType<MinHashStatsAction.Response> {
+
+    public static final MinHashStatsAction INSTANCE = new MinHashStatsAction();
+
+    public static final String NAME = "cluster:monitor/minhash/stats";
+
+    private MinHashStatsAction() {
+        super(NAME);
+    }
+
+    public static class Request extends BaseNodesRequest<Request> {
+
+        private String[] indices = new String[0];
+
+        public Request(final String... nodesIds) {
+            super(nodesIds);
+        }
+
+        /**
+         * Sets indices to return their stats. All indices are returned when
+         * empty.
+         */
+        public Request indices(final String... indices) {
+            this.indices = indices;
+            return this;
+        }
+
+        public String[] indices() {
+            return indices;
+        }
+    }
+
+    public static class NodeRequest extends TransportRequest {
+
+        private final String[] indices;
+
+        NodeRequest(final Request request) {
+            indices = request.indices();
+        }
+
+        public NodeRequest(final StreamInput in) throws IOException {
+            super(in);
+            indices = in.readStringArray();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeStringArray(indices);
+        }
+
+        public String[] indices() {
+            return indices;
+        }
+    }
+
+    public static class NodeResponse extends BaseNodeResponse
+            implements ToXContentFragment {
+
+        private final MinHashStats.Stats total;
+
+        private final Map<String, MinHashStats.Stats> indices;
+
+        private final long cacheCount;
+
+        private final long cacheSize;
+
+        private final long cacheHits;
+
+        private final long cacheMisses;
+
+        private final long cacheEvictions;
+
+        NodeResponse(final DiscoveryNode node, final MinHashStats.Stats total,
+                final Map<String, MinHashStats.Stats> indices,
+                final MinHashSignatureCache cache) {
+            super(node);
+            this.total = total;
+            this.indices = indices;
+            cacheCount = cache.count();
+            cacheSize = cache.weight();
+            cacheHits = cache.hits();
+            cacheMisses = cache.misses();
+            cacheEvictions = cache.evictions();
+        }
+
+        public NodeResponse(final StreamInput in) throws IOException {
+            super(in);
+            total = new MinHashStats.Stats(in);
+            indices = in.readMap(MinHashStats.Stats::new);
+            cacheCount = in.readVLong();
+            cacheSize = in.readVLong();
+            cacheHits = in.readVLong();
+            cacheMisses = in.readVLong();
+            cacheEvictions = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            total.writeTo(out);
+            out.writeMap(indices, StreamOutput::writeWriteable);
+            out.writeVLong(cacheCount);
+            out.writeVLong(cacheSize);
+            out.writeVLong(cacheHits);
+            out.writeVLong(cacheMisses);
+            out.writeVLong(cacheEvictions);
+        }
+
+        public MinHashStats.Stats getTotal() {
+            return total;
+        }
+
+        public Map<String, MinHashStats.Stats> getIndices() {
+            return indices;
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder,
+                final Params params) throws IOException {
+            builder.field("name", getNode().getName());
+            builder.startObject("total");
+            total.toXContent(builder, params);
+            builder.endObject();
+            builder.startObject("cache");
+            builder.field("count", cacheCount);
+            builder.humanReadableField("size_in_bytes", "size",
+                    ByteSizeValue.ofBytes(cacheSize));
+            builder.field("hits", cacheHits);
+            builder.field("misses", cacheMisses);
+            builder.field("evictions", cacheEvictions);
+            builder.endObject();
+            builder.startObject("indices");
+            for (final Map.Entry<String, MinHashStats.Stats> entry : new TreeMap<>(
+                    indices).entrySet()) {
+                builder.startObject(entry.getKey());
+                entry.getValue().toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    public static class Response extends BaseNodesResponse<NodeResponse>
+            implements ToXContentFragment {
+
+        public Response(final ClusterName clusterName,
+                final List<NodeResponse> nodes,
+                final List<FailedNodeException> failures) {
+            super(clusterName, nodes, failures);
+        }
+
+        @Override
+        protected List<NodeResponse> readNodesFrom(final StreamInput in)
+                throws IOException {
+            return in.readCollectionAsList(NodeResponse::new);
+        }
+
+        @Override
+        protected void writeNodesTo(final StreamOutput out,
+                final List<NodeResponse> nodes) throws IOException {
+            out.writeCollection(nodes);
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder,
+                final Params params) throws IOException {
+            builder.startObject("nodes");
+            for (final NodeResponse node : getNodes()) {
+                builder.startObject(node.getNode().getId());
+                node.toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.action;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.codelibs.minhash.MinHash;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.RefCountingListener;
+import org.elasticsearch.action.support.single.shard.TransportSingleShardAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.ShardsIterator;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Calculates minhash values on a node which has the index. Texts are split
+ * into slices, and the slices are calculated in parallel on the minhash
+ * thread pool.
+ */
+public class TransportMinHashComputeAction extends
+        TransportSingleShardAction<MinHashComputeAction.Request, MinHashComputeAction.Response> {
+
+    private final IndicesService indicesService;
+
+    @Inject
+    public TransportMinHashComputeAction(final ThreadPool threadPool,
+            final ClusterService clusterService,
+            final TransportService transportService,
+            final IndicesService indicesService,
+            final ActionFilters actionFilters,
+            final IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(MinHashComputeAction.NAME, threadPool, clusterService,
+                transportService, actionFilters, indexNameExpressionResolver,
+                MinHashComputeAction.Request::new,
+                threadPool.executor(ThreadPool.Names.ANALYZE));
+        this.indicesService = indicesService;
+    }
+
+    @Override
+    protected Writeable.Reader<MinHashComputeAction.Response> getResponseReader() {
+        return MinHashComputeAction.Response::new;
+    }
+
+    @Override
+    protected boolean resolveIndex(
+            final MinHashComputeAction.Request request) {
+        return true;
+    }
+
+    @Override
+    protected ShardsIterator shards(final ClusterState state,
+            final InternalRequest request) {
+        return state.routingTable().index(request.concreteIndex())
+                .randomAllActiveShardsIt();
+    }
+
+    @Override
+    protected void asyncShardOperation(
+            final MinHashComputeAction.Request request, final ShardId shardId,
+            final ActionListener<MinHashComputeAction.Response> listener)
+            throws IOException {
+        final Analyzer analyzer;
+        final boolean bitString;
+        try {
+            final IndexService indexService = indicesService
+                    .indexServiceSafe(shardId.getIndex());
+            if (request.field() != null) {
+                final MinHashFieldType fieldType = minHashFieldType(
+                        indexService, request.field());
+                analyzer = fieldType.minhashAnalyzer();
+                bitString = fieldType.bitString();
+            } else {
+                analyzer = indexService.getIndexAnalyzers()
+                        .get(request.analyzer());
+                if (analyzer == null) {
+                    throw new IllegalArgumentException(
+                            "failed to find analyzer [" + request.analyzer()
+                                    + "]");
+                }
+                bitString = false;
+            }
+        } catch (final Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+
+        final List<String> texts = request.texts();
+        final String[] signatures = new String[texts.size()];
+        // a slice per thread of the minhash pool
+        final int numOfSlices = Math.max(1, Math.min(texts.size(), threadPool
+                .info(MinHashFieldMapper.THREAD_POOL_NAME).getMax()));
+        final int sliceSize = (texts.size() + numOfSlices - 1) / numOfSlices;
+        final Executor executor = threadPool
+                .executor(MinHashFieldMapper.THREAD_POOL_NAME);
+        try (RefCountingListener refs = new RefCountingListener(
+                listener.map(v -> new MinHashComputeAction.Response(
+                        Arrays.asList(signatures))))) {
+            for (int start = 0; start < texts.size(); start += sliceSize) {
+                final int from = start;
+                final int to = Math.min(texts.size(), start + sliceSize);
+                executor.execute(ActionRunnable.run(refs.acquire(), () -> {
+                    for (int i = from; i < to; i++) {
+                        signatures[i] = calculate(analyzer, texts.get(i),
+                                bitString);
+                    }
+                }));
+            }
+        }
+    }
+
+    @Override
+    protected MinHashComputeAction.Response shardOperation(
+            final MinHashComputeAction.Request request, final ShardId shardId)
+            throws IOException {
+        throw new UnsupportedOperationException(
+                "minhash values are calculated by asyncShardOperation");
+    }
+
+    private static MinHashFieldType minHashFieldType(
+            final IndexService indexService, final String field) {
+        final MappedFieldType fieldType = indexService.mapperService()
+                .fieldType(field);
+        if (!(fieldType instanceof MinHashFieldType)) {
+            throw new IllegalArgumentException(
+                    "[" + field + "] is not a minhash field");
+        }
+        return (MinHashFieldType) fieldType;
+    }
+
+    static String calculate(final Analyzer analyzer, final String text,
+            final boolean bitString) throws IOException {
+        final byte[] value = MinHash.calculate(analyzer, text);
+        if (value == null) {
+            return null;
+        }
+        if (bitString) {
+            return MinHash.toBinaryString(value);
+        }
+        return Base64.getEncoder().encodeToString(value);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.action;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.action.support.RefCountingListener;
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Sends a join request to each shard of the index, and merges the pairs of
+ * the shards.
+ */
+public class TransportMinHashJoinAction extends
+        HandledTransportAction<MinHashJoinAction.Request, MinHashJoinAction.Response> {
+
+    private final ClusterService clusterService;
+
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+
+    private final NodeClient client;
+
+    @Inject
+    public TransportMinHashJoinAction(final ClusterService clusterService,
+            final TransportService transportService,
+            final ActionFilters actionFilters,
+            final IndexNameExpressionResolver indexNameExpressionResolver,
+            final NodeClient client) {
+        super(MinHashJoinAction.NAME, transportService, actionFilters,
+                MinHashJoinAction.Request::new,
+                EsExecutors.DIRECT_EXECUTOR_SERVICE);
+        this.clusterService = clusterService;
+        this.indexNameExpressionResolver = indexNameExpressionResolver;
+        this.client = client;
+    }
+
+    @Override
+    protected void doExecute(final Task task,
+            final MinHashJoinAction.Request request,
+            final ActionListener<MinHashJoinAction.Response> listener) {
+        final String index;
+        final int numShards;
+        try {
+            final ClusterState state = clusterService.state();
+            index = indexNameExpressionResolver
+                    .concreteSingleIndex(state, request).getName();
+            numShards = state.metadata().index(index).getNumberOfShards();
+        } catch (final Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+
+        final AtomicReferenceArray<MinHashShardJoinAction.Response> responses = new AtomicReferenceArray<>(
+                numShards);
+        try (RefCountingListener refs = new RefCountingListener(
+                listener.map(v -> merge(request, responses)))) {
+            for (int shardId = 0; shardId < numShards; shardId++) {
+                final int shard = shardId;
+                final MinHashShardJoinAction.Request shardRequest = new MinHashShardJoinAction.Request(
+                        index, shard, request);
+                shardRequest.setParentTask(clusterService.localNode().getId(),
+                        task.getId());
+                client.execute(MinHashShardJoinAction.INSTANCE, shardRequest,
+                        refs.acquire(response -> responses.set(shard,
+                                response)));
+            }
+        }
+    }
+
+    private static MinHashJoinAction.Response merge(
+            final MinHashJoinAction.Request request,
+            final AtomicReferenceArray<MinHashShardJoinAction.Response> responses) {
+        final List<MinHashJoinAction.Pair> pairs = new ArrayList<>();
+        long totalPairs = 0;
+        boolean truncated = false;
+        for (int i = 0; i < responses.length(); i++) {
+            final MinHashShardJoinAction.Response response = responses.get(i);
+            pairs.addAll(response.getPairs());
+            totalPairs += response.getTotalPairs();
+            truncated |= response.isTruncated();
+        }
+        pairs.sort(MinHashJoinAction.ORDER);
+        if (pairs.size() > request.maxPairs()) {
+            truncated = true;
+        }
+        return new MinHashJoinAction.Response(responses.length(), totalPairs,
+                truncated, new ArrayList<>(pairs.subList(0,
+                        Math.min(pairs.size(), request.maxPairs()))));
+    }
+}
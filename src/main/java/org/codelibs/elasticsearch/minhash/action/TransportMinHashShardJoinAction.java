@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.action;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.single.shard.TransportSingleShardAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.ShardsIterator;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Joins documents of a shard on a node which has a copy of the shard.
+ */
+public class TransportMinHashShardJoinAction extends
+        TransportSingleShardAction<MinHashShardJoinAction.Request, MinHashShardJoinAction.Response> {
+
+    private final IndicesService indicesService;
+
+    private final BigArrays bigArrays;
+
+    @Inject
+    public TransportMinHashShardJoinAction(final ThreadPool threadPool,
+            final ClusterService clusterService,
+            final TransportService transportService,
+            final IndicesService indicesService, final BigArrays bigArrays,
+            final ActionFilters actionFilters,
+            final IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(MinHashShardJoinAction.NAME, threadPool, clusterService,
+                transportService, actionFilters, indexNameExpressionResolver,
+                MinHashShardJoinAction.Request::new,
+                threadPool.executor(ThreadPool.Names.SEARCH));
+        this.indicesService = indicesService;
+        this.bigArrays = bigArrays.withCircuitBreaking();
+    }
+
+    @Override
+    protected Writeable.Reader<MinHashShardJoinAction.Response> getResponseReader() {
+        return MinHashShardJoinAction.Response::new;
+    }
+
+    @Override
+    protected boolean resolveIndex(
+            final MinHashShardJoinAction.Request request) {
+        // the index is resolved by the coordinating node
+        return false;
+    }
+
+    @Override
+    protected ShardsIterator shards(final ClusterState state,
+            final InternalRequest request) {
+        return state.routingTable()
+                .shardRoutingTable(request.concreteIndex(),
+                        request.request().shardId())
+                .activeInitializingShardsRandomIt();
+    }
+
+    @Override
+    protected MinHashShardJoinAction.Response shardOperation(
+            final MinHashShardJoinAction.Request request,
+            final ShardId shardId) throws IOException {
+        final MinHashJoinAction.Request joinRequest = request.joinRequest();
+        final IndexService indexService = indicesService
+                .indexServiceSafe(shardId.getIndex());
+        final MappedFieldType mappedFieldType = indexService.mapperService()
+                .fieldType(joinRequest.field());
+        if (!(mappedFieldType instanceof MinHashFieldType)) {
+            throw new IllegalArgumentException(
+                    "[" + joinRequest.field() + "] is not a minhash field");
+        }
+        final MinHashFieldType fieldType = (MinHashFieldType) mappedFieldType;
+        if (!fieldType.hasDocValues()) {
+            throw new IllegalArgumentException("[" + joinRequest.field()
+                    + "] does not have doc values");
+        }
+        int bands = joinRequest.bands();
+        int rows = joinRequest.rows();
+        if (bands == 0) {
+            if (!fieldType.hasLsh()) {
+                throw new IllegalArgumentException("[" + joinRequest.field()
+                        + "] does not have LSH bands, so bands and rows are required");
+            }
+            bands = fieldType.lshBands();
+            rows = fieldType.lshRows();
+        }
+
+        try (Engine.Searcher searcher = indexService.getShard(shardId.id())
+                .acquireSearcher("minhash_join");
+                MinHashShardJoiner joiner = new MinHashShardJoiner(bigArrays,
+                        request.task(), bands, rows,
+                        joinRequest.minSimilarity(),
+                        joinRequest.maxPairs())) {
+            joiner.collect(searcher.getIndexReader(), fieldType);
+            joiner.join();
+            final List<MinHashJoinAction.Pair> pairs = joiner
+                    .pairs(searcher.getIndexReader());
+            return new MinHashShardJoinAction.Response(pairs.size(),
+                    joiner.truncated(), pairs);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.action;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.minhash.cache.MinHashSignatureCache;
+import org.codelibs.elasticsearch.minhash.stats.MinHashStats;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportMinHashStatsAction extends
+        TransportNodesAction<MinHashStatsAction.Request, MinHashStatsAction.Response, MinHashStatsAction.NodeRequest, MinHashStatsAction.NodeResponse, Void> {
+
+    private final MinHashStats stats;
+
+    private final MinHashSignatureCache cache;
+
+    @Inject
+    public TransportMinHashStatsAction(final ThreadPool threadPool,
+            final ClusterService clusterService,
+            final TransportService transportService,
+            final ActionFilters actionFilters, final MinHashStats stats,
+            final MinHashSignatureCache cache) {
+        super(MinHashStatsAction.NAME, clusterService, transportService,
+                actionFilters, MinHashStatsAction.NodeRequest::new,
+                threadPool.executor(ThreadPool.Names.MANAGEMENT));
+        this.stats = stats;
+        this.cache = cache;
+    }
+
+    @Override
+    protected MinHashStatsAction.Response newResponse(
+            final MinHashStatsAction.Request request,
+            final List<MinHashStatsAction.NodeResponse> responses,
+            final List<FailedNodeException> failures) {
+        return new MinHashStatsAction.Response(clusterService.getClusterName(),
+                responses, failures);
+    }
+
+    @Override
+    protected MinHashStatsAction.NodeRequest newNodeRequest(
+            final MinHashStatsAction.Request request) {
+        return new MinHashStatsAction.NodeRequest(request);
+    }
+
+    @Override
+    protected MinHashStatsAction.NodeResponse newNodeResponse(
+            final StreamInput in, final DiscoveryNode node)
+            throws IOException {
+        return new MinHashStatsAction.NodeResponse(in);
+    }
+
+    @Override
+    protected MinHashStatsAction.NodeResponse nodeOperation(
+            final MinHashStatsAction.NodeRequest request, final Task task) {
+        final Map<String, MinHashStats.Stats> indexStats = stats.indexStats();
+        if (request.indices().length > 0) {
+            indexStats.keySet().removeIf(
+                    index -> !Regex.simpleMatch(request.indices(), index));
+        }
+        return new MinHashStatsAction.NodeResponse(
+                clusterService.localNode(), stats.total(), indexStats, cache);
+    }
+}
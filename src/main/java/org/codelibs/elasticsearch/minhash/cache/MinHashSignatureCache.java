@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Node-level LRU cache of minhash values, keyed by a digest of the text and
+ * the analysis settings. The cache is disabled unless
+ * {@code minhash.cache.size} is set.
+ */
+public class MinHashSignatureCache {
+
+    public static final Setting<ByteSizeValue> CACHE_SIZE_SETTING = Setting
+            .memorySizeSetting("minhash.cache.size", "0b", Property.NodeScope);
+
+    private static final HashFunction DIGEST = Hashing.murmur3_128();
+
+    // key fields, array headers and references
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final Cache<Key, String> cache;
+
+    public MinHashSignatureCache(final Settings settings) {
+        final long size = CACHE_SIZE_SETTING.get(settings).getBytes();
+        if (size > 0) {
+            cache = CacheBuilder.<Key, String> builder()
+                    .setMaximumWeight(size)
+                    .weigher((k, v) -> ENTRY_OVERHEAD
+                            + 2L * (k.analyzer.length() + v.length()))
+                    .build();
+        } else {
+            cache = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Creates a key of the text.
+     *
+     * @param analyzer an identifier of the analyzer and its settings
+     * @param text text to calculate a minhash value
+     */
+    public Key key(final String analyzer, final CharSequence text) {
+        final ByteBuffer digest = ByteBuffer
+                .wrap(DIGEST.hashUnencodedChars(text).asBytes());
+        return new Key(analyzer, digest.getLong(0), digest.getLong(8),
+                text.length());
+    }
+
+    /**
+     * Returns a Base64 minhash value, or null.
+     */
+    public String get(final Key key) {
+        return cache.get(key);
+    }
+
+    public void put(final Key key, final String value) {
+        cache.put(key, value);
+    }
+
+    public long count() {
+        return isEnabled() ? cache.count() : 0;
+    }
+
+    public long weight() {
+        return isEnabled() ? cache.weight() : 0;
+    }
+
+    public long hits() {
+        return isEnabled() ? cache.stats().getHits() : 0;
+    }
+
+    public long misses() {
+        return isEnabled() ? cache.stats().getMisses() : 0;
+    }
+
+    public long evictions() {
+        return isEnabled() ? cache.stats().getEvictions() : 0;
+    }
+
+    /**
+     * Creates an identifier of an analyzer, which changes when analysis
+     * settings of the index change.
+     *
+     * @param analyzer analyzer name
+     * @param analysisSettings {@code index.analysis} settings
+     */
+    public static String analyzerKey(final String analyzer,
+            final Settings analysisSettings) {
+        return analyzer + '/'
+                + DIGEST.hashUnencodedChars(analysisSettings.toString());
+    }
+
+    public static final class Key {
+        private final String analyzer;
+
+        private final long digest1;
+
+        private final long digest2;
+
+        private final int length;
+
+        Key(final String analyzer, final long digest1, final long digest2,
+                final int length) {
+            this.analyzer = analyzer;
+            this.digest1 = digest1;
+            this.digest2 = digest2;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return digest1 == other.digest1 && digest2 == other.digest2
+                    && length == other.length
+                    && analyzer.equals(other.analyzer);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(analyzer, digest1, digest2, length);
+        }
+    }
+}
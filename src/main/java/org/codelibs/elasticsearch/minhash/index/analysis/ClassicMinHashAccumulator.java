@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.analysis;
+
+import com.google.common.hash.HashFunction;
+
+/**
+ * Hashes each token with all hash functions, as
+ * {@link org.codelibs.minhash.analysis.MinHashTokenFilter} does.
+ */
+public class ClassicMinHashAccumulator extends MinHashAccumulator {
+
+    private final HashFunction[] hashFunctions;
+
+    public ClassicMinHashAccumulator(final HashFunction[] hashFunctions,
+            final int hashBit) {
+        super(hashFunctions.length, hashBit);
+        this.hashFunctions = hashFunctions;
+    }
+
+    @Override
+    public void add(final CharSequence term) {
+        for (int i = 0; i < hashFunctions.length; i++) {
+            final long value = hashFunctions[i].hashUnencodedChars(term)
+                    .asLong();
+            if (value < values[i]) {
+                values[i] = value;
+            }
+        }
+    }
+
+    @Override
+    public void addHash(final long hash) {
+        for (int i = 0; i < hashFunctions.length; i++) {
+            final long value = hashFunctions[i].hashLong(hash).asLong();
+            if (value < values[i]) {
+                values[i] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.analysis;
+
+import java.util.Arrays;
+
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+
+/**
+ * Keeps minimum hash values of tokens to calculate a b-bit minhash value.
+ *
+ * An accumulator is reused for documents, so {@link #reset()} needs to be
+ * called before each document. Accumulators created with the same settings
+ * can be merged, and a merged accumulator has the same minimum values as an
+ * accumulator which received all tokens.
+ */
+public abstract class MinHashAccumulator {
+
+    protected final long[] values;
+
+    protected final int hashBit;
+
+    protected MinHashAccumulator(final int numOfHash, final int hashBit) {
+        this.values = new long[numOfHash];
+        this.hashBit = hashBit;
+        reset();
+    }
+
+    /**
+     * Adds a token.
+     */
+    public abstract void add(CharSequence term);
+
+    /**
+     * Adds a token by its 64-bit hash, such as a hash of a shingle combined
+     * from hashes of its tokens.
+     */
+    public abstract void addHash(long hash);
+
+    public void reset() {
+        Arrays.fill(values, Long.MAX_VALUE);
+    }
+
+    /**
+     * Merges minimum values of the other accumulator into this.
+     */
+    public void merge(final MinHashAccumulator other) {
+        if (getClass() != other.getClass()
+                || values.length != other.values.length) {
+            throw new IllegalArgumentException(
+                    "Cannot merge incompatible minhash accumulators");
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (other.values[i] < values[i]) {
+                values[i] = other.values[i];
+            }
+        }
+    }
+
+    /**
+     * Returns true if {@link #values()} is the whole state of this
+     * accumulator, so kept minimum values can be merged by
+     * {@link #merge(long[])}.
+     */
+    public boolean supportsMerge() {
+        return true;
+    }
+
+    /**
+     * Merges minimum values, such as values kept from a previous calculation
+     * by {@link #values()}. The accumulator needs to support it, as
+     * {@link #supportsMerge()} tells.
+     */
+    public void merge(final long[] otherValues) {
+        if (!supportsMerge()) {
+            throw new IllegalStateException("Cannot merge minimum values into "
+                    + getClass().getSimpleName());
+        }
+        if (values.length != otherValues.length) {
+            throw new IllegalArgumentException("Expected " + values.length
+                    + " minimum values, got " + otherValues.length);
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (otherValues[i] < values[i]) {
+                values[i] = otherValues[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the minimum values of the hash functions.
+     */
+    public long[] values() {
+        return values;
+    }
+
+    public int hashBit() {
+        return hashBit;
+    }
+
+    /**
+     * Returns the number of bytes in a b-bit minhash value.
+     */
+    public int numOfBytes() {
+        return (values.length * hashBit + 7) / 8;
+    }
+
+    /**
+     * Creates a b-bit minhash value from the minimum values.
+     */
+    public byte[] toSignature() {
+        return toSignature(finalValues(), hashBit);
+    }
+
+    /**
+     * Returns minimum values used for a b-bit minhash value.
+     */
+    protected long[] finalValues() {
+        return values;
+    }
+
+    /**
+     * Creates a b-bit minhash value, in the same bit layout as
+     * {@link org.codelibs.minhash.analysis.MinHashTokenFilter}: the lowest
+     * {@code hashBit} bits of each value are stored in order.
+     */
+    public static byte[] toSignature(final long[] values, final int hashBit) {
+        final byte[] signature = new byte[(values.length * hashBit + 7) / 8];
+        int pos = 0;
+        for (final long value : values) {
+            long v = value;
+            for (int j = 0; j < hashBit; j++) {
+                if ((v & 1L) != 0) {
+                    signature[pos >>> 3] |= 1 << (pos & 7);
+                }
+                pos++;
+                v >>>= 1;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Calculates a 64-bit hash of the characters (FNV-1a with the finalizer
+     * of MurmurHash3).
+     */
+    public static long hash(final CharSequence term, final long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        final int length = term.length();
+        for (int i = 0; i < length; i++) {
+            h ^= term.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Scrambles bits of the value (the finalizer of MurmurHash3).
+     */
+    public static long mix(final long h) {
+        return SignatureUtils.mix(h);
+    }
+}
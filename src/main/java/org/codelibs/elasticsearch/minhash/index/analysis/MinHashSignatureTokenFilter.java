@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.analysis;
+
+import java.io.IOException;
+import java.util.Base64;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+
+/**
+ * Consumes all tokens and emits a Base64 minhash value calculated by a
+ * {@link MinHashAccumulator}.
+ */
+public class MinHashSignatureTokenFilter extends TokenFilter {
+
+    private final CharTermAttribute termAttr = addAttribute(
+            CharTermAttribute.class);
+
+    private final OffsetAttribute offsetAttr = addAttribute(
+            OffsetAttribute.class);
+
+    private final MinHashAccumulator accumulator;
+
+    private boolean emitted;
+
+    public MinHashSignatureTokenFilter(final TokenStream input,
+            final MinHashAccumulator accumulator) {
+        super(input);
+        this.accumulator = accumulator;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        if (emitted) {
+            return false;
+        }
+        while (input.incrementToken()) {
+            accumulator.add(termAttr);
+        }
+        emitted = true;
+
+        final String minhash = Base64.getEncoder()
+                .encodeToString(accumulator.toSignature());
+        clearAttributes();
+        termAttr.setEmpty().append(minhash);
+        offsetAttr.setOffset(0, minhash.length());
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        accumulator.reset();
+        emitted = false;
+    }
+}
@@ -15,7 +15,10 @@
  */
 package org.codelibs.elasticsearch.minhash.index.analysis;
 
+import java.util.Locale;
+
 import org.apache.lucene.analysis.TokenStream;
+import org.codelibs.elasticsearch.minhash.stats.MinHashStats;
 import org.codelibs.minhash.MinHash;
 import org.codelibs.minhash.analysis.MinHashTokenFilter;
 import org.elasticsearch.common.settings.Settings;
@@ -27,24 +30,172 @@ import com.google.common.hash.HashFunction;
 
 public class MinHashTokenFilterFactory extends AbstractTokenFilterFactory {
 
+    /**
+     * Hash functions to calculate minimum values.
+     */
+    public enum HashStrategy {
+        /** Hashes each token with {@code size} hash functions. */
+        CLASSIC,
+        /** Hashes each token once and mixes it for each hash. */
+        SINGLE_HASH,
+        /** One permutation hashing with densification. */
+        ONE_PERMUTATION;
+
+        public static HashStrategy of(final String value) {
+            try {
+                return valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (final IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Unknown [hash_strategy]: " + value, e);
+            }
+        }
+    }
+
+    /**
+     * How tokens are counted.
+     */
+    public enum Mode {
+        /** Treats tokens as a set. */
+        SET,
+        /** Treats tokens as a multiset, weighted by term frequencies. */
+        WEIGHTED;
+
+        public static Mode of(final String value) {
+            try {
+                return valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (final IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown [mode]: " + value,
+                        e);
+            }
+        }
+    }
+
     private final int hashBit;
 
+    private final int numOfHash;
+
+    private final int seed;
+
+    private final HashStrategy hashStrategy;
+
+    private final Mode mode;
+
+    private final int shingleSize;
+
     private final HashFunction[] hashFunctions;
 
+    private final boolean countTokens;
+
     public MinHashTokenFilterFactory(final IndexSettings indexSettings,
             final Environment environment, final String name,
             final Settings settings) {
+        this(indexSettings, environment, name, settings, null);
+    }
+
+    public MinHashTokenFilterFactory(final IndexSettings indexSettings,
+            final Environment environment, final String name,
+            final Settings settings, final MinHashStats stats) {
         super(name, settings);
 
         hashBit = settings.getAsInt("bit", 1);
-        final int numOfHash = settings.getAsInt("size", 128);
-        final int seed = settings.getAsInt("seed", 0);
+        numOfHash = settings.getAsInt("size", 128);
+        seed = settings.getAsInt("seed", 0);
+        hashStrategy = HashStrategy
+                .of(settings.get("hash_strategy", "classic"));
+        mode = Mode.of(settings.get("mode", "set"));
+        shingleSize = settings.getAsInt("shingle_size", 1);
+        if (hashBit < 1 || hashBit > 64) {
+            throw new IllegalArgumentException(
+                    "[bit] must be between 1 and 64, got " + hashBit);
+        }
+        if (numOfHash < 1) {
+            throw new IllegalArgumentException(
+                    "[size] must be positive, got " + numOfHash);
+        }
+        if (shingleSize < 1) {
+            throw new IllegalArgumentException(
+                    "[shingle_size] must be positive, got " + shingleSize);
+        }
 
-        hashFunctions = MinHash.createHashFunctions(seed, numOfHash);
+        if (hashStrategy == HashStrategy.CLASSIC) {
+            hashFunctions = MinHash.createHashFunctions(seed, numOfHash);
+        } else {
+            hashFunctions = null;
+        }
+        // tokens are recorded by the mapper
+        countTokens = stats != null;
     }
 
     @Override
-    public TokenStream create(final TokenStream tokenStream) {
-        return new MinHashTokenFilter(tokenStream, hashFunctions, hashBit);
+    public TokenStream create(TokenStream tokenStream) {
+        if (countTokens) {
+            tokenStream = new TokenCountingFilter(tokenStream);
+        }
+        if (hashStrategy == HashStrategy.CLASSIC && mode == Mode.SET
+                && shingleSize == 1) {
+            return new MinHashTokenFilter(tokenStream, hashFunctions, hashBit);
+        }
+        return new MinHashSignatureTokenFilter(tokenStream, newAccumulator());
+    }
+
+    /**
+     * Creates an accumulator which calculates the same minhash value as
+     * filters created by this factory.
+     */
+    public MinHashAccumulator newAccumulator() {
+        final MinHashAccumulator accumulator;
+        switch (hashStrategy) {
+        case SINGLE_HASH:
+            accumulator = new SingleHashMinHashAccumulator(seed, numOfHash,
+                    hashBit);
+            break;
+        case ONE_PERMUTATION:
+            accumulator = new OnePermutationMinHashAccumulator(seed,
+                    numOfHash, hashBit);
+            break;
+        default:
+            accumulator = new ClassicMinHashAccumulator(hashFunctions,
+                    hashBit);
+            break;
+        }
+        final MinHashAccumulator weighted = mode == Mode.WEIGHTED
+                ? new WeightedMinHashAccumulator(accumulator)
+                : accumulator;
+        if (shingleSize > 1) {
+            // shingles are counted in the weighted mode
+            return new ShingleMinHashAccumulator(weighted, shingleSize, seed);
+        }
+        return weighted;
+    }
+
+    public int hashBit() {
+        return hashBit;
+    }
+
+    public int numOfHash() {
+        return numOfHash;
+    }
+
+    public int seed() {
+        return seed;
+    }
+
+    public HashStrategy hashStrategy() {
+        return hashStrategy;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public int shingleSize() {
+        return shingleSize;
+    }
+
+    /**
+     * Returns the number of bytes of minhash values created by this factory.
+     */
+    public int signatureLength() {
+        return (numOfHash * hashBit + 7) / 8;
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.analysis;
+
+/**
+ * One permutation hashing with densification. Each token is hashed once and
+ * put into one of bins, and empty bins borrow values from other bins
+ * (Shrivastava, "Optimal Densification for Fast and Accurate Minwise
+ * Hashing", 2017).
+ */
+public class OnePermutationMinHashAccumulator extends MinHashAccumulator {
+
+    private static final int MAX_ATTEMPTS = 1024;
+
+    private final long seed;
+
+    private final long[] densified;
+
+    public OnePermutationMinHashAccumulator(final int seed,
+            final int numOfHash, final int hashBit) {
+        super(numOfHash, hashBit);
+        this.seed = seed;
+        densified = new long[numOfHash];
+    }
+
+    @Override
+    public void add(final CharSequence term) {
+        addHash(hash(term, seed));
+    }
+
+    @Override
+    public void addHash(final long h) {
+        final int bin = bin(h >>> 32);
+        if (h < values[bin]) {
+            values[bin] = h;
+        }
+    }
+
+    private int bin(final long h) {
+        return (int) ((h & 0xffffffffL) * values.length >>> 32);
+    }
+
+    @Override
+    protected long[] finalValues() {
+        final int numOfBins = values.length;
+        for (int i = 0; i < numOfBins; i++) {
+            long value = values[i];
+            if (value == Long.MAX_VALUE) {
+                for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                    final long candidate = values[bin(
+                            mix(seed ^ ((long) i << 32 | attempt)) >>> 32)];
+                    if (candidate != Long.MAX_VALUE) {
+                        value = candidate;
+                        break;
+                    }
+                }
+            }
+            densified[i] = value;
+        }
+        return densified;
+    }
+}
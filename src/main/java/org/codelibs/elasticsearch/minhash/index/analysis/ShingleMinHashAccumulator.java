@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.analysis;
+
+/**
+ * Calculates a minhash value of word n-grams (shingles) of tokens. Each token
+ * is hashed once, and the hash of a shingle is a polynomial rolling hash of
+ * the token hashes, which is updated for each token without concatenating
+ * terms. A text with fewer tokens than the shingle size is added as one
+ * shingle.
+ *
+ * Shingles depend on the order of tokens, so a merged accumulator must
+ * receive the tokens after the tokens of this accumulator. Shingles across
+ * the boundary are added from the first tokens of the merged accumulator.
+ */
+public class ShingleMinHashAccumulator extends MinHashAccumulator {
+
+    private static final long MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    private final MinHashAccumulator delegate;
+
+    private final int shingleSize;
+
+    private final long seed;
+
+    /** MULTIPLIER ^ (shingleSize - 1) */
+    private final long leadingFactor;
+
+    /** hashes of the last tokens */
+    private final long[] window;
+
+    /** hashes of the first shingleSize - 1 tokens */
+    private final long[] head;
+
+    private int windowPos;
+
+    private long count;
+
+    private long rollingHash;
+
+    public ShingleMinHashAccumulator(final MinHashAccumulator delegate,
+            final int shingleSize, final int seed) {
+        super(0, delegate.hashBit());
+        this.delegate = delegate;
+        this.shingleSize = shingleSize;
+        this.seed = seed;
+        long factor = 1;
+        for (int i = 1; i < shingleSize; i++) {
+            factor *= MULTIPLIER;
+        }
+        leadingFactor = factor;
+        window = new long[shingleSize];
+        head = new long[shingleSize - 1];
+    }
+
+    @Override
+    public void add(final CharSequence term) {
+        push(hash(term, seed));
+    }
+
+    @Override
+    public void addHash(final long hash) {
+        push(hash);
+    }
+
+    private void push(final long hash) {
+        if (count >= shingleSize) {
+            // remove the oldest token from the window
+            rollingHash -= window[windowPos] * leadingFactor;
+        } else if (count < head.length) {
+            head[(int) count] = hash;
+        }
+        rollingHash = rollingHash * MULTIPLIER + hash;
+        window[windowPos] = hash;
+        windowPos = windowPos + 1 < shingleSize ? windowPos + 1 : 0;
+        count++;
+        if (count >= shingleSize) {
+            delegate.addHash(mix(rollingHash));
+        }
+    }
+
+    @Override
+    public void reset() {
+        // called by the constructor of the super class
+        if (delegate != null) {
+            windowPos = 0;
+            count = 0;
+            rollingHash = 0;
+            delegate.reset();
+        }
+    }
+
+    @Override
+    public void merge(final MinHashAccumulator other) {
+        if (!(other instanceof ShingleMinHashAccumulator)
+                || ((ShingleMinHashAccumulator) other).shingleSize != shingleSize) {
+            throw new IllegalArgumentException(
+                    "Cannot merge incompatible minhash accumulators");
+        }
+        final ShingleMinHashAccumulator shingle = (ShingleMinHashAccumulator) other;
+        final int numOfHeads = (int) Math.min(shingle.count, head.length);
+        for (int i = 0; i < numOfHeads; i++) {
+            push(shingle.head[i]);
+        }
+        delegate.merge(shingle.delegate);
+        if (shingle.count > head.length) {
+            // the last tokens of the other accumulator
+            System.arraycopy(shingle.window, 0, window, 0, shingleSize);
+            windowPos = shingle.windowPos;
+            rollingHash = shingle.rollingHash;
+            count += shingle.count - numOfHeads;
+        }
+    }
+
+    @Override
+    public boolean supportsMerge() {
+        // minimum values do not have the last tokens
+        return false;
+    }
+
+    @Override
+    public long[] values() {
+        return delegate.values();
+    }
+
+    @Override
+    public int numOfBytes() {
+        return delegate.numOfBytes();
+    }
+
+    @Override
+    protected long[] finalValues() {
+        if (count > 0 && count < shingleSize) {
+            delegate.addHash(mix(rollingHash));
+        }
+        return delegate.finalValues();
+    }
+
+    public int shingleSize() {
+        return shingleSize;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.analysis;
+
+/**
+ * Hashes each token once, and derives a value for each slot by mixing the
+ * hash with a per-slot seed.
+ */
+public class SingleHashMinHashAccumulator extends MinHashAccumulator {
+
+    private final long seed;
+
+    private final long[] slotSeeds;
+
+    public SingleHashMinHashAccumulator(final int seed, final int numOfHash,
+            final int hashBit) {
+        super(numOfHash, hashBit);
+        this.seed = seed;
+        slotSeeds = new long[numOfHash];
+        for (int i = 0; i < numOfHash; i++) {
+            slotSeeds[i] = mix(seed + (i + 1) * 0x9e3779b97f4a7c15L);
+        }
+    }
+
+    @Override
+    public void add(final CharSequence term) {
+        addHash(hash(term, seed));
+    }
+
+    @Override
+    public void addHash(final long h) {
+        for (int i = 0; i < slotSeeds.length; i++) {
+            final long value = mix(h ^ slotSeeds[i]);
+            if (value < values[i]) {
+                values[i] = value;
+            }
+        }
+    }
+}
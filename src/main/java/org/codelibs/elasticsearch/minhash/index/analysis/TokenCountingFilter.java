@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.analysis;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+
+/**
+ * Counts tokens passed to a minhash filter. A count is only kept on a thread
+ * between {@link #startCounting()} and {@link #stopCounting()}, so tokens of
+ * search, the compute API or ingest processors are not counted as indexed
+ * tokens.
+ */
+public final class TokenCountingFilter extends TokenFilter {
+
+    /** the count of the thread, or -1 if the thread does not count */
+    private static final ThreadLocal<long[]> COUNT = ThreadLocal
+            .withInitial(() -> new long[] { -1 });
+
+    private long count;
+
+    TokenCountingFilter(final TokenStream input) {
+        super(input);
+    }
+
+    /**
+     * Starts counting tokens of token streams on the current thread.
+     */
+    public static void startCounting() {
+        COUNT.get()[0] = 0;
+    }
+
+    /**
+     * Stops counting tokens on the current thread.
+     *
+     * @return the number of tokens since {@link #startCounting()}
+     */
+    public static long stopCounting() {
+        final long[] current = COUNT.get();
+        final long value = Math.max(0, current[0]);
+        current[0] = -1;
+        return value;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (input.incrementToken()) {
+            count++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        final long[] current = COUNT.get();
+        if (current[0] >= 0) {
+            current[0] += count;
+        }
+        count = 0;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        count = 0;
+    }
+}
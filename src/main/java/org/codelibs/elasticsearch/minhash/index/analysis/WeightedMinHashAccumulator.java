@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.analysis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.CharArrayMap;
+
+/**
+ * Calculates a minhash value of the multiset of tokens, which approximates
+ * the weighted Jaccard similarity with term frequencies as weights.
+ *
+ * The n-th occurrence of a token is added to the underlying accumulator as a
+ * distinct element, so a token which occurs once is added as it is, and a
+ * text without repeated tokens has the same value as in the set mode.
+ * Term frequencies, and frequencies of tokens added by their hashes, are
+ * kept until the value is created, and merged accumulators sum them.
+ */
+public class WeightedMinHashAccumulator extends MinHashAccumulator {
+
+    private final MinHashAccumulator delegate;
+
+    /** term frequencies */
+    private final CharArrayMap<int[]> counts = new CharArrayMap<>(64, false);
+
+    /** frequencies of tokens added by their hashes */
+    private final Map<Long, int[]> hashCounts = new HashMap<>();
+
+    private final StringBuilder element = new StringBuilder();
+
+    public WeightedMinHashAccumulator(final MinHashAccumulator delegate) {
+        super(0, delegate.hashBit());
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void add(final CharSequence term) {
+        final int[] count = counts.get(term);
+        if (count != null) {
+            count[0]++;
+        } else {
+            counts.put(term, new int[] { 1 });
+        }
+    }
+
+    @Override
+    public void addHash(final long hash) {
+        final int[] count = hashCounts.get(hash);
+        if (count != null) {
+            count[0]++;
+        } else {
+            hashCounts.put(hash, new int[] { 1 });
+        }
+    }
+
+    @Override
+    public void reset() {
+        // called by the constructor of the super class
+        if (delegate != null) {
+            counts.clear();
+            hashCounts.clear();
+            delegate.reset();
+        }
+    }
+
+    @Override
+    public void merge(final MinHashAccumulator other) {
+        if (!(other instanceof WeightedMinHashAccumulator)) {
+            throw new IllegalArgumentException(
+                    "Cannot merge incompatible minhash accumulators");
+        }
+        final WeightedMinHashAccumulator weighted = (WeightedMinHashAccumulator) other;
+        for (final Map.Entry<Object, int[]> entry : weighted.counts
+                .entrySet()) {
+            final int[] count = counts.get(entry.getKey());
+            if (count != null) {
+                count[0] += entry.getValue()[0];
+            } else {
+                counts.put(entry.getKey(), new int[] { entry.getValue()[0] });
+            }
+        }
+        for (final Map.Entry<Long, int[]> entry : weighted.hashCounts
+                .entrySet()) {
+            final int[] count = hashCounts.get(entry.getKey());
+            if (count != null) {
+                count[0] += entry.getValue()[0];
+            } else {
+                hashCounts.put(entry.getKey(),
+                        new int[] { entry.getValue()[0] });
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsMerge() {
+        // minimum values do not have term frequencies
+        return false;
+    }
+
+    @Override
+    public long[] values() {
+        return delegate.values();
+    }
+
+    @Override
+    public int numOfBytes() {
+        return delegate.numOfBytes();
+    }
+
+    @Override
+    protected long[] finalValues() {
+        delegate.reset();
+        for (final Map.Entry<Object, int[]> entry : counts.entrySet()) {
+            // keys of entries are char arrays
+            final String term = new String((char[]) entry.getKey());
+            delegate.add(term);
+            final int count = entry.getValue()[0];
+            for (int n = 2; n <= count; n++) {
+                element.setLength(0);
+                element.append(term).append('\u0000').append(n);
+                delegate.add(element);
+            }
+        }
+        for (final Map.Entry<Long, int[]> entry : hashCounts.entrySet()) {
+            final long hash = entry.getKey();
+            delegate.addHash(hash);
+            final int count = entry.getValue()[0];
+            for (int n = 2; n <= count; n++) {
+                delegate.addHash(mix(hash + n * 0x9e3779b97f4a7c15L));
+            }
+        }
+        return delegate.finalValues();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.fielddata;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+
+/**
+ * Reads minhash values from doc values of a segment. A value is decoded into
+ * reusable long words, so no object is created per document. A document with
+ * multiple values is read by its first value in the order of doc values.
+ */
+public abstract class MinHashSignatureValues {
+
+    protected byte[] bytes = new byte[0];
+
+    /** bytes of the current value which are not copied to {@link #bytes} */
+    private byte[] source;
+
+    private int sourceOffset;
+
+    protected long[] words = new long[0];
+
+    protected int numBytes;
+
+    /**
+     * Returns an iterator over documents which have a minhash value.
+     */
+    public abstract DocIdSetIterator iterator();
+
+    /**
+     * Advances to the given document.
+     *
+     * @return true if the document has a minhash value
+     */
+    public abstract boolean advanceExact(int doc) throws IOException;
+
+    /**
+     * Decodes the minhash value of the current document. This method is
+     * called at most once per document.
+     */
+    public abstract void decode() throws IOException;
+
+    /**
+     * Returns the decoded minhash value packed into long words.
+     */
+    public long[] words() {
+        return words;
+    }
+
+    /**
+     * Returns the decoded minhash value. Only the first {@link #numBytes()}
+     * bytes are valid.
+     */
+    public byte[] bytes() {
+        if (source != null) {
+            bytes = ArrayUtil.grow(bytes, numBytes);
+            System.arraycopy(source, sourceOffset, bytes, 0, numBytes);
+            source = null;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes in the decoded minhash value.
+     */
+    public int numBytes() {
+        return numBytes;
+    }
+
+    protected void setBytes(final int length) {
+        source = null;
+        numBytes = length;
+        words = ArrayUtil.grow(words, SignatureUtils.numWords(length));
+        SignatureUtils.toWords(bytes, length, words);
+    }
+
+    /**
+     * Sets the current value from bytes owned by doc values, without copying
+     * them. The bytes are copied only if {@link #bytes()} is called.
+     */
+    protected void setBytes(final byte[] src, final int offset,
+            final int length) {
+        source = src;
+        sourceOffset = offset;
+        numBytes = length;
+        words = ArrayUtil.grow(words, SignatureUtils.numWords(length));
+        SignatureUtils.toWords(src, offset, length, words);
+    }
+
+    public static MinHashSignatureValues load(final LeafReader reader,
+            final MinHashFieldType fieldType) throws IOException {
+        if (fieldType.binaryDocValues()) {
+            return new BinarySignatureValues(
+                    DocValues.getBinary(reader, fieldType.name()));
+        }
+        return new SortedSetSignatureValues(
+                DocValues.getSortedSet(reader, fieldType.name()),
+                fieldType.bitString(), fieldType.packed());
+    }
+
+    static class SortedSetSignatureValues extends MinHashSignatureValues {
+
+        private final SortedSetDocValues values;
+
+        private final boolean bitString;
+
+        private final boolean packed;
+
+        /** the ordinal of the decoded value */
+        private long decodedOrd = -1;
+
+        SortedSetSignatureValues(final SortedSetDocValues values,
+                final boolean bitString, final boolean packed) {
+            this.values = values;
+            this.bitString = bitString;
+            this.packed = packed;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return values;
+        }
+
+        @Override
+        public boolean advanceExact(final int doc) throws IOException {
+            return values.advanceExact(doc);
+        }
+
+        @Override
+        public void decode() throws IOException {
+            final long ord = values.nextOrd();
+            if (ord == decodedOrd) {
+                // the same value as the previous document
+                return;
+            }
+            decodedOrd = ord;
+            final BytesRef value = values.lookupOrd(ord);
+            if (packed) {
+                // raw values are read from the doc values buffer in place
+                setBytes(value.bytes, value.offset, value.length);
+                return;
+            }
+            final int length;
+            if (bitString) {
+                bytes = ArrayUtil.grow(bytes, (value.length + 7) / 8);
+                length = SignatureUtils.decodeBitString(value, bytes);
+            } else {
+                bytes = ArrayUtil.grow(bytes,
+                        SignatureUtils.maxBase64DecodedLength(value.length));
+                length = SignatureUtils.decodeBase64(value, bytes);
+            }
+            setBytes(length);
+        }
+    }
+
+    /**
+     * Reads raw minhash values written in the layout of
+     * {@link org.elasticsearch.index.mapper.BinaryFieldMapper.CustomBinaryDocValuesField}.
+     */
+    static class BinarySignatureValues extends MinHashSignatureValues {
+
+        private final BinaryDocValues values;
+
+        BinarySignatureValues(final BinaryDocValues values) {
+            this.values = values;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return values;
+        }
+
+        @Override
+        public boolean advanceExact(final int doc) throws IOException {
+            return values.advanceExact(doc);
+        }
+
+        @Override
+        public void decode() throws IOException {
+            final BytesRef value = values.binaryValue();
+            final byte[] src = value.bytes;
+            int pos = value.offset;
+            // values are sorted, and the first one is read
+            while ((src[pos++] & 0x80) != 0) {
+                // skip the number of values
+            }
+            int length = 0;
+            for (int shift = 0;; shift += 7) {
+                final byte b = src[pos++];
+                length |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            // words are read from the doc values buffer in place
+            setBytes(src, pos, length);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.mapper;
+
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * Reads characters of a {@link CharSequence} without copying it into a
+ * string.
+ */
+final class CharSequenceReader extends Reader {
+
+    private CharSequence text;
+
+    private int pos;
+
+    CharSequenceReader(final CharSequence text) {
+        this.text = text;
+    }
+
+    @Override
+    public int read() {
+        if (text == null || pos >= text.length()) {
+            return -1;
+        }
+        return text.charAt(pos++);
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) {
+        if (text == null || pos >= text.length()) {
+            return -1;
+        }
+        final int n = Math.min(len, text.length() - pos);
+        if (text instanceof CharBuffer && ((CharBuffer) text).hasArray()) {
+            final CharBuffer buffer = (CharBuffer) text;
+            System.arraycopy(buffer.array(),
+                    buffer.arrayOffset() + buffer.position() + pos, cbuf, off,
+                    n);
+        } else {
+            for (int i = 0; i < n; i++) {
+                cbuf[off + i] = text.charAt(pos + i);
+            }
+        }
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        text = null;
+    }
+}
@@ -15,24 +15,40 @@
  */
 package org.codelibs.elasticsearch.minhash.index.mapper;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.minhash.cache.MinHashSignatureCache;
+import org.codelibs.elasticsearch.minhash.index.analysis.MinHashTokenFilterFactory;
+import org.codelibs.elasticsearch.minhash.index.analysis.TokenCountingFilter;
+import org.codelibs.elasticsearch.minhash.stats.MinHashStats;
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
 import org.codelibs.minhash.MinHash;
 import org.elasticsearch.common.lucene.Lucene;
 import org.elasticsearch.index.analysis.NamedAnalyzer;
 import org.elasticsearch.index.fielddata.FieldData;
 import org.elasticsearch.index.fielddata.FieldDataContext;
 import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.plain.BytesBinaryIndexFieldData;
 import org.elasticsearch.index.fielddata.plain.SortedSetOrdinalsIndexFieldData;
+import org.elasticsearch.index.mapper.BinaryFieldMapper.CustomBinaryDocValuesField;
 import org.elasticsearch.index.mapper.DocumentParserContext;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
@@ -45,7 +61,9 @@ import org.elasticsearch.index.mapper.StringFieldType;
 import org.elasticsearch.index.mapper.TextSearchInfo;
 import org.elasticsearch.index.mapper.ValueFetcher;
 import org.elasticsearch.index.query.SearchExecutionContext;
+import org.elasticsearch.script.field.BinaryDocValuesField;
 import org.elasticsearch.script.field.KeywordDocValuesField;
+import org.elasticsearch.search.DocValueFormat;
 import org.elasticsearch.search.aggregations.support.CoreValuesSourceType;
 import org.elasticsearch.xcontent.XContentParser;
 
@@ -53,6 +71,15 @@ public class MinHashFieldMapper extends FieldMapper {
 
     public static final String CONTENT_TYPE = "minhash";
 
+    public static final String LSH_FIELD_SUFFIX = "._lsh";
+
+    public static final String DOC_VALUES_FORMAT_SORTED_SET = "sorted_set";
+
+    public static final String DOC_VALUES_FORMAT_BINARY = "binary";
+
+    /** thread pool to calculate chunks of large texts */
+    public static final String THREAD_POOL_NAME = "minhash";
+
     public static class Defaults {
         public static final FieldType FIELD_TYPE = new FieldType();
 
@@ -62,6 +89,15 @@ public class MinHashFieldMapper extends FieldMapper {
             FIELD_TYPE.setIndexOptions(IndexOptions.DOCS);
             FIELD_TYPE.freeze();
         }
+
+        public static final FieldType LSH_FIELD_TYPE = new FieldType();
+
+        static {
+            LSH_FIELD_TYPE.setTokenized(false);
+            LSH_FIELD_TYPE.setOmitNorms(true);
+            LSH_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS);
+            LSH_FIELD_TYPE.freeze();
+        }
     }
 
     public static class MinHashField extends Field {
@@ -86,12 +122,53 @@ public class MinHashFieldMapper extends FieldMapper {
         private final Parameter<Boolean> stored = Parameter
                 .storeParam(m -> toType(m).stored, false);
 
+        private final Parameter<String> docValuesFormat = Parameter
+                .restrictedStringParam("doc_values_format", false,
+                        m -> toType(m).docValuesFormat,
+                        DOC_VALUES_FORMAT_SORTED_SET, DOC_VALUES_FORMAT_BINARY);
+
         private final Parameter<String> nullValue = Parameter.stringParam(
                 "null_value", false, m -> toType(m).nullValue, null);
 
         private final Parameter<Boolean> bitString = Parameter.boolParam(
                 "bit_string", false, m -> toType(m).bitString, false);
 
+        private final Parameter<Boolean> packed = Parameter.boolParam(
+                "packed", false, m -> toType(m).packed, false);
+
+        private final Parameter<Integer> lshBands = Parameter
+                .intParam("lsh_bands", false, m -> toType(m).lshBands, 0)
+                .addValidator(v -> {
+                    if (v < 0 || v > 0xffff) {
+                        throw new IllegalArgumentException(
+                                "[lsh_bands] must be between 0 and 65535, got "
+                                        + v);
+                    }
+                });
+
+        private final Parameter<Integer> lshRows = Parameter
+                .intParam("lsh_rows", false, m -> toType(m).lshRows, 0)
+                .addValidator(v -> {
+                    if (v < 0) {
+                        throw new IllegalArgumentException(
+                                "[lsh_rows] must not be negative, got " + v);
+                    }
+                });
+
+        private final Parameter<Boolean> precomputed = Parameter.boolParam(
+                "precomputed", false, m -> toType(m).precomputed, false);
+
+        private final Parameter<Integer> parallelChunkSize = Parameter
+                .intParam("parallel_chunk_size", true,
+                        m -> toType(m).parallelChunkSize, 0)
+                .addValidator(v -> {
+                    if (v < 0) {
+                        throw new IllegalArgumentException(
+                                "[parallel_chunk_size] must not be negative, got "
+                                        + v);
+                    }
+                });
+
         private final Parameter<Map<String, String>> meta = Parameter
                 .metaParam();
 
@@ -107,18 +184,39 @@ public class MinHashFieldMapper extends FieldMapper {
 
         private final MappingParserContext parserContext;
 
+        private final MinHashSignatureCache cache;
+
+        private final MinHashStats stats;
+
+        private final Supplier<ExecutorService> executor;
+
         private NamedAnalyzer mergedAnalyzer;
 
+        private String mergedCacheKey;
+
+        private MinHashStats.Recorder mergedRecorder;
+
         public Builder(final String name,
                 final MappingParserContext parserContext) {
+            this(name, parserContext, null, null, null);
+        }
+
+        public Builder(final String name,
+                final MappingParserContext parserContext,
+                final MinHashSignatureCache cache, final MinHashStats stats,
+                final Supplier<ExecutorService> executor) {
             super(name);
             this.parserContext = parserContext;
+            this.cache = cache;
+            this.stats = stats;
+            this.executor = executor;
         }
 
         @Override
         public Parameter<?>[] getParameters() {
             return new Parameter<?>[] { meta, indexed, stored, hasDocValues,
-                    nullValue, bitString, minhashAnalyzer };
+                    docValuesFormat, nullValue, bitString, packed, lshBands,
+                    lshRows, precomputed, parallelChunkSize, minhashAnalyzer };
         }
 
         @Override
@@ -128,9 +226,17 @@ public class MinHashFieldMapper extends FieldMapper {
                 final MinHashFieldMapper mapper = (MinHashFieldMapper) initializer;
                 this.indexed.setValue(mapper.indexed);
                 this.hasDocValues.setValue(mapper.hasDocValues);
+                this.docValuesFormat.setValue(mapper.docValuesFormat);
                 this.nullValue.setValue(mapper.nullValue);
                 this.bitString.setValue(mapper.bitString);
+                this.packed.setValue(mapper.packed);
+                this.lshBands.setValue(mapper.lshBands);
+                this.lshRows.setValue(mapper.lshRows);
+                this.precomputed.setValue(mapper.precomputed);
+                this.parallelChunkSize.setValue(mapper.parallelChunkSize);
                 this.mergedAnalyzer = mapper.minhashAnalyzer;
+                this.mergedCacheKey = mapper.cacheKey;
+                this.mergedRecorder = mapper.recorder;
             }
             return this;
         }
@@ -151,11 +257,46 @@ public class MinHashFieldMapper extends FieldMapper {
             return null;
         }
 
+        private String cacheKey() {
+            if (cache == null || !cache.isEnabled()) {
+                return null;
+            }
+            if (mergedCacheKey != null) {
+                return mergedCacheKey;
+            }
+            if (parserContext != null) {
+                return MinHashSignatureCache.analyzerKey(
+                        minhashAnalyzer.getValue(),
+                        parserContext.getIndexSettings().getSettings()
+                                .getByPrefix("index.analysis."));
+            }
+            return null;
+        }
+
+        private boolean hasMultiFields() {
+            return multiFieldsBuilder.hasMultiFields();
+        }
+
+        private MinHashStats.Recorder recorder() {
+            if (mergedRecorder != null) {
+                return mergedRecorder;
+            }
+            if (stats != null && parserContext != null) {
+                return stats.recorder(
+                        parserContext.getIndexSettings().getIndex().getName());
+            }
+            return null;
+        }
+
         private MinHashFieldType buildFieldType(
                 final MapperBuilderContext context, final FieldType fieldType) {
             return new MinHashFieldType(context.buildFullName(name()), fieldType,
                     indexed.getValue(), stored.getValue(),
-                    hasDocValues.getValue(), meta.getValue());
+                    hasDocValues.getValue(),
+                    DOC_VALUES_FORMAT_BINARY
+                            .equals(docValuesFormat.getValue()),
+                    bitString.getValue(), packed.getValue(), lshBands.getValue(),
+                    lshRows.getValue(), minhashAnalyzer(), meta.getValue());
         }
 
         @Override
@@ -168,31 +309,161 @@ public class MinHashFieldMapper extends FieldMapper {
             return new MinHashFieldMapper(name(), fieldtype,
                     buildFieldType(context, fieldtype),
                     multiFieldsBuilder.build(this, context), copyTo,
-                    this, minhashAnalyzer());
+                    this, minhashAnalyzer(), cache, cacheKey(), recorder(),
+                    executor);
         }
     }
 
     public static class TypeParser implements Mapper.TypeParser {
+        private final MinHashSignatureCache cache;
+
+        private final MinHashStats stats;
+
+        private final Supplier<ExecutorService> executor;
+
+        public TypeParser() {
+            this(null, null, null);
+        }
+
+        /**
+         * @param executor executor to calculate chunks of a large text in
+         *            parallel
+         */
+        public TypeParser(final MinHashSignatureCache cache,
+                final MinHashStats stats,
+                final Supplier<ExecutorService> executor) {
+            this.cache = cache;
+            this.stats = stats;
+            this.executor = executor;
+        }
+
         @Override
         public MinHashFieldMapper.Builder parse(final String name,
                 final Map<String, Object> node,
                 final MappingParserContext parserContext)
                 throws MapperParsingException {
             final MinHashFieldMapper.Builder builder = new MinHashFieldMapper.Builder(
-                    name, parserContext);
+                    name, parserContext, cache, stats, executor);
             builder.parse(name, parserContext, node);
+            if ((builder.lshBands.getValue() > 0) != (builder.lshRows
+                    .getValue() > 0)) {
+                throw new MapperParsingException("[lsh_bands] and [lsh_rows]"
+                        + " must be set together for field [" + name + "]");
+            }
+            if (builder.precomputed.getValue()
+                    && builder.hasMultiFields()) {
+                throw new MapperParsingException("Field [" + name
+                        + "] with [precomputed] does not support multi-fields");
+            }
             return builder;
         }
     }
 
     public static final class MinHashFieldType extends StringFieldType {
+        private final boolean binaryDocValues;
+
+        private final boolean bitString;
+
+        private final boolean packed;
+
+        private final int lshBands;
+
+        private final int lshRows;
+
+        private final NamedAnalyzer minhashAnalyzer;
+
         public MinHashFieldType(final String name, final FieldType fieldType,
                 final boolean isIndexed, final boolean isStored,
-                final boolean hasDocValues, final Map<String, String> meta) {
+                final boolean hasDocValues, final boolean binaryDocValues,
+                final boolean bitString, final boolean packed,
+                final int lshBands, final int lshRows,
+                final NamedAnalyzer minhashAnalyzer,
+                final Map<String, String> meta) {
             super(name, isIndexed, isStored, hasDocValues,
                     new TextSearchInfo(fieldType, null, Lucene.KEYWORD_ANALYZER,
                             Lucene.KEYWORD_ANALYZER),
                     meta);
+            this.binaryDocValues = binaryDocValues;
+            this.bitString = bitString;
+            this.packed = packed;
+            this.lshBands = lshBands;
+            this.lshRows = lshRows;
+            this.minhashAnalyzer = minhashAnalyzer;
+        }
+
+        /**
+         * Returns true if doc values have raw minhash values in binary doc
+         * values, instead of encoded values in sorted set doc values.
+         */
+        public boolean binaryDocValues() {
+            return binaryDocValues;
+        }
+
+        public boolean bitString() {
+            return bitString;
+        }
+
+        /**
+         * Returns true if terms, stored fields and sorted set doc values have
+         * raw minhash values instead of encoded values. Encoded values are
+         * still accepted in queries and rendered in responses.
+         */
+        public boolean packed() {
+            return packed;
+        }
+
+        public NamedAnalyzer minhashAnalyzer() {
+            return minhashAnalyzer;
+        }
+
+        /**
+         * Calculates a minhash value of the text with the minhash analyzer.
+         */
+        public byte[] calculate(final String text) throws IOException {
+            if (minhashAnalyzer == null) {
+                throw new IllegalArgumentException("Field [" + name()
+                        + "] does not have a minhash analyzer");
+            }
+            return MinHash.calculate(minhashAnalyzer, text);
+        }
+
+        public int lshBands() {
+            return lshBands;
+        }
+
+        public int lshRows() {
+            return lshRows;
+        }
+
+        public boolean hasLsh() {
+            return isIndexed() && lshBands > 0 && lshRows > 0;
+        }
+
+        public String lshFieldName() {
+            return name() + LSH_FIELD_SUFFIX;
+        }
+
+        /**
+         * Creates a query matching documents which share at least
+         * {@code minimumShouldMatch} LSH bands with the given signature.
+         */
+        public Query lshQuery(final byte[] signature,
+                final int minimumShouldMatch) {
+            if (!hasLsh()) {
+                throw new IllegalArgumentException("Field [" + name()
+                        + "] of type [" + CONTENT_TYPE
+                        + "] does not have [lsh_bands] and [lsh_rows]");
+            }
+            final int bands = Math.min(lshBands,
+                    SignatureUtils.numBits(signature) / lshRows);
+            final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            for (int i = 0; i < bands; i++) {
+                builder.add(new TermQuery(new Term(lshFieldName(),
+                        SignatureUtils.bandTerm(signature, i, lshRows))),
+                        Occur.SHOULD);
+            }
+            builder.setMinimumNumberShouldMatch(minimumShouldMatch);
+            return builder.build();
         }
 
         @Override
@@ -206,18 +477,85 @@ public class MinHashFieldMapper extends FieldMapper {
             return SourceValueFetcher.identity(name(), context, format);
         }
 
+        /**
+         * Decodes a minhash value in either form, as precomputed values are.
+         * So a value is found regardless of {@code bit_string} of the field.
+         */
+        public byte[] decode(final String encoded) {
+            return SignatureUtils.decode(encoded,
+                    SignatureUtils.isBitString(encoded, -1));
+        }
+
+        @Override
+        protected BytesRef indexedValueForSearch(final Object value) {
+            final String encoded = value instanceof BytesRef
+                    ? ((BytesRef) value).utf8ToString()
+                    : value.toString();
+            if (packed) {
+                try {
+                    return new BytesRef(decode(encoded));
+                } catch (final IllegalArgumentException e) {
+                    throw new IllegalArgumentException("[" + name()
+                            + "] is packed and requires a minhash value, got ["
+                            + encoded + "]", e);
+                }
+            }
+            if (SignatureUtils.isBitString(encoded, -1) != bitString) {
+                try {
+                    // a value in the other form
+                    return new BytesRef(SignatureUtils
+                            .encode(decode(encoded), bitString));
+                } catch (final IllegalArgumentException e) {
+                    // not a minhash value
+                }
+            }
+            return super.indexedValueForSearch(value);
+        }
+
+        @Override
+        public Object valueForDisplay(final Object value) {
+            if (packed && value instanceof BytesRef) {
+                final BytesRef bytes = (BytesRef) value;
+                return SignatureUtils.encode(BytesRef.deepCopyOf(bytes).bytes,
+                        bitString);
+            }
+            return super.valueForDisplay(value);
+        }
+
         @Override
         public IndexFieldData.Builder fielddataBuilder(FieldDataContext fieldDataContext) {
             failIfNoDocValues();
+            if (binaryDocValues) {
+                return new BytesBinaryIndexFieldData.Builder(name(),
+                        CoreValuesSourceType.KEYWORD,
+                        BinaryDocValuesField::new);
+            }
+            if (packed) {
+                return new SortedSetOrdinalsIndexFieldData.Builder(name(),
+                        CoreValuesSourceType.KEYWORD,
+                        (dv, n) -> new BinaryDocValuesField(
+                                FieldData.toString(dv), n));
+            }
             return new SortedSetOrdinalsIndexFieldData.Builder(name(),
                     CoreValuesSourceType.KEYWORD,
                     (dv, n) -> new KeywordDocValuesField(FieldData.toString(dv),
                             n));
         }
 
+        @Override
+        public DocValueFormat docValueFormat(final String format,
+                final ZoneId timeZone) {
+            if (binaryDocValues || packed) {
+                checkNoFormat(format);
+                checkNoTimeZone(timeZone);
+                return DocValueFormat.BINARY;
+            }
+            return super.docValueFormat(format, timeZone);
+        }
+
         @Override
         public CollapseType collapseType() {
-            return CollapseType.KEYWORD;
+            return binaryDocValues ? CollapseType.NONE : CollapseType.KEYWORD;
         }
     }
 
@@ -227,39 +565,130 @@ public class MinHashFieldMapper extends FieldMapper {
 
     private final boolean hasDocValues;
 
+    private final String docValuesFormat;
+
     private final String nullValue;
 
     private final boolean bitString;
 
+    private final boolean packed;
+
+    private final int lshBands;
+
+    private final int lshRows;
+
     private final NamedAnalyzer minhashAnalyzer;
 
+    private final MinHashSignatureCache cache;
+
+    private final String cacheKey;
+
+    private final MinHashStats.Recorder recorder;
+
+    private final boolean precomputed;
+
+    /** the number of bytes of a minhash value, or -1 if unknown */
+    private final int signatureLength;
+
+    private final int parallelChunkSize;
+
+    private final Supplier<ExecutorService> executor;
+
+    private final SignatureCalculator signatureCalculator;
+
+    /** true if values of multi-fields are kept until they are parsed */
+    private final boolean hasPendingMultiFields;
+
     private final FieldType fieldType;
 
     protected MinHashFieldMapper(final String simpleName,
             final FieldType fieldType, final MappedFieldType mappedFieldType,
             final MultiFields multiFields, final CopyTo copyTo,
-            final Builder builder, final NamedAnalyzer minhashAnalyzer) {
+            final Builder builder, final NamedAnalyzer minhashAnalyzer,
+            final MinHashSignatureCache cache, final String cacheKey,
+            final MinHashStats.Recorder recorder,
+            final Supplier<ExecutorService> executor) {
         super(simpleName, mappedFieldType, multiFields, copyTo);
         this.indexed = builder.indexed.getValue();
         this.stored = builder.stored.getValue();
         this.hasDocValues = builder.hasDocValues.getValue();
+        this.docValuesFormat = builder.docValuesFormat.getValue();
         this.nullValue = builder.nullValue.getValue();
         this.bitString = builder.bitString.getValue();
+        this.packed = builder.packed.getValue();
+        this.lshBands = builder.lshBands.getValue();
+        this.lshRows = builder.lshRows.getValue();
         this.minhashAnalyzer = minhashAnalyzer;
+        this.cache = cacheKey != null ? cache : null;
+        this.cacheKey = cacheKey;
+        this.recorder = recorder;
+        this.precomputed = builder.precomputed.getValue();
+        final MinHashTokenFilterFactory minHashFilter = SignatureCalculator
+                .minHashFilter(minhashAnalyzer);
+        this.signatureLength = minHashFilter != null
+                ? minHashFilter.signatureLength()
+                : -1;
+        this.parallelChunkSize = builder.parallelChunkSize.getValue();
+        this.executor = executor;
         this.fieldType = fieldType;
+        final List<MinHashFieldMapper> minHashMultiFields = new ArrayList<>();
+        for (final Mapper mapper : this) {
+            if (mapper instanceof MinHashFieldMapper) {
+                minHashMultiFields.add((MinHashFieldMapper) mapper);
+            }
+        }
+        signatureCalculator = precomputed || minHashMultiFields.isEmpty()
+                && parallelChunkSize == 0 ? null
+                        : SignatureCalculator.create(minhashAnalyzer,
+                                minHashMultiFields, recorder,
+                                parallelChunkSize, executor);
+        hasPendingMultiFields = signatureCalculator != null
+                && !minHashMultiFields.isEmpty();
+    }
+
+    @Override
+    public void parse(final DocumentParserContext context) throws IOException {
+        if (!hasPendingMultiFields) {
+            super.parse(context);
+            return;
+        }
+        try {
+            // multi-fields are parsed after parseCreateField
+            super.parse(context);
+        } finally {
+            SignatureBuffer.get().clearPending();
+        }
+    }
+
+    NamedAnalyzer minhashAnalyzer() {
+        return minhashAnalyzer;
     }
 
     @Override
     protected void parseCreateField(final DocumentParserContext context)
             throws IOException {
+        final XContentParser parser = context.parser();
         if (!indexed && !stored && !hasDocValues) {
+            if (parser.currentToken() == XContentParser.Token.START_ARRAY) {
+                parser.skipChildren();
+            }
             return;
         }
 
-        String value;
-        final XContentParser parser = context.parser();
+        if (precomputed) {
+            parsePrecomputed(context);
+            return;
+        }
+
+        final CharSequence value;
         if (parser.currentToken() == XContentParser.Token.VALUE_NULL) {
             value = nullValue;
+            if (value != null && recorder != null) {
+                recorder.onNullValue();
+            }
+        } else if (parser.hasTextCharacters()) {
+            // analyze the buffer of the parser without a copy
+            value = parser.charBuffer();
         } else {
             value = parser.textOrNull();
         }
@@ -268,18 +697,123 @@ public class MinHashFieldMapper extends FieldMapper {
             return;
         }
 
-        final byte[] minhashValue = MinHash.calculate(minhashAnalyzer, value);
-        final String stringValue;
-        if (bitString) {
-            stringValue = MinHash.toBinaryString(minhashValue);
+        final SignatureBuffer buffer = SignatureBuffer.get();
+        final long startTime;
+        final boolean calculated;
+        if (recorder != null) {
+            startTime = System.nanoTime();
+            TokenCountingFilter.startCounting();
+            try {
+                calculated = calculate(buffer, value);
+            } finally {
+                recorder.onTokens(TokenCountingFilter.stopCounting());
+            }
+        } else {
+            startTime = 0;
+            calculated = calculate(buffer, value);
+        }
+        if (!calculated) {
+            return;
+        }
+        if (recorder != null) {
+            recorder.onDocument(System.nanoTime() - startTime,
+                    buffer.byteLength());
+        }
+        addFields(context, buffer);
+    }
+
+    /**
+     * Parses minhash values calculated outside Elasticsearch: a Base64 value,
+     * a bit string, binary data (CBOR/SMILE), or an array of byte values.
+     */
+    private void parsePrecomputed(final DocumentParserContext context)
+            throws IOException {
+        final XContentParser parser = context.parser();
+        XContentParser.Token token = parser.currentToken();
+        if (token != XContentParser.Token.START_ARRAY) {
+            parsePrecomputedValue(context, token);
+            return;
+        }
+        ByteArrayOutputStream rawBytes = null;
+        boolean hasOtherValues = false;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            if (token == XContentParser.Token.VALUE_NUMBER) {
+                final int value = parser.intValue();
+                if (value < Byte.MIN_VALUE || value > 255) {
+                    throw new IllegalArgumentException("Field ["
+                            + fieldType().name() + "] expects bytes, got "
+                            + value);
+                }
+                if (rawBytes == null) {
+                    rawBytes = new ByteArrayOutputStream();
+                }
+                rawBytes.write(value);
+            } else {
+                parsePrecomputedValue(context, token);
+                hasOtherValues = true;
+            }
+        }
+        if (rawBytes != null) {
+            if (hasOtherValues) {
+                throw new IllegalArgumentException("Field ["
+                        + fieldType().name()
+                        + "] does not accept bytes mixed with other values");
+            }
+            addPrecomputed(context, rawBytes.toByteArray());
+        }
+    }
+
+    private void parsePrecomputedValue(final DocumentParserContext context,
+            final XContentParser.Token token) throws IOException {
+        final XContentParser parser = context.parser();
+        final String value;
+        if (token == XContentParser.Token.VALUE_NULL) {
+            if (nullValue == null) {
+                return;
+            }
+            if (recorder != null) {
+                recorder.onNullValue();
+            }
+            value = nullValue;
+        } else if (token == XContentParser.Token.VALUE_EMBEDDED_OBJECT) {
+            addPrecomputed(context, parser.binaryValue());
+            return;
+        } else if (token == XContentParser.Token.VALUE_STRING) {
+            value = parser.text();
         } else {
-            stringValue = new String(Base64.getEncoder().encode(minhashValue),
-                    StandardCharsets.UTF_8);
+            throw new IllegalArgumentException("Field [" + fieldType().name()
+                    + "] expects a precomputed minhash value, got " + token);
+        }
+        addPrecomputed(context, SignatureUtils.decode(value,
+                SignatureUtils.isBitString(value, signatureLength)));
+    }
+
+    private void addPrecomputed(final DocumentParserContext context,
+            final byte[] signature) {
+        if (signatureLength >= 0 && signature.length != signatureLength) {
+            throw new IllegalArgumentException("Field [" + fieldType().name()
+                    + "] expects a minhash value of " + signatureLength
+                    + " bytes, got " + signature.length + " bytes");
+        }
+        final SignatureBuffer buffer = SignatureBuffer.get();
+        buffer.setSignature(signature);
+        addFields(context, buffer);
+    }
+
+    private void addFields(final DocumentParserContext context,
+            final SignatureBuffer buffer) {
+        if (packed) {
+            addPackedFields(context, buffer);
+            return;
+        }
+
+        if (bitString) {
+            buffer.toBitString();
         }
 
         if (indexed || stored) {
             final IndexableField field = new MinHashField(fieldType().name(),
-                    stringValue, fieldType);
+                    buffer.encodedString(), fieldType);
             context.doc().add(field);
 
             if (!hasDocValues) {
@@ -288,15 +822,129 @@ public class MinHashFieldMapper extends FieldMapper {
         }
 
         if (hasDocValues) {
-            final BytesRef binaryValue = new BytesRef(stringValue);
-            context.doc().add(new SortedSetDocValuesField(fieldType().name(),
-                    binaryValue));
+            if (DOC_VALUES_FORMAT_BINARY.equals(docValuesFormat)) {
+                addBinaryDocValue(context, buffer.copyBytes());
+            } else {
+                context.doc().add(new SortedSetDocValuesField(
+                        fieldType().name(), buffer.encodedBytes()));
+            }
+        }
+
+        if (indexed && lshBands > 0) {
+            addLshFields(context, buffer.bytes(), buffer.byteLength());
+        }
+    }
+
+    /**
+     * Adds fields with the raw minhash value. The term, the stored field and
+     * the doc value share one copy of the value.
+     */
+    private void addPackedFields(final DocumentParserContext context,
+            final SignatureBuffer buffer) {
+        final BytesRef value = new BytesRef(buffer.copyBytes());
+        if (indexed || stored) {
+            context.doc()
+                    .add(new Field(fieldType().name(), value, fieldType));
+
+            if (!hasDocValues) {
+                context.addToFieldNames(fieldType().name());
+            }
+        }
+
+        if (hasDocValues) {
+            if (DOC_VALUES_FORMAT_BINARY.equals(docValuesFormat)) {
+                addBinaryDocValue(context, value.bytes);
+            } else {
+                context.doc().add(
+                        new SortedSetDocValuesField(fieldType().name(), value));
+            }
         }
+
+        if (indexed && lshBands > 0) {
+            addLshFields(context, value.bytes, value.length);
+        }
+    }
+
+    /**
+     * Adds a value to the binary doc values field of the document. A field
+     * has one binary doc value per document, so values of a multi-valued
+     * document are added to the same field.
+     */
+    private void addBinaryDocValue(final DocumentParserContext context,
+            final byte[] value) {
+        final String name = fieldType().name();
+        CustomBinaryDocValuesField field = (CustomBinaryDocValuesField) context
+                .doc().getByKey(name);
+        if (field == null) {
+            field = new CustomBinaryDocValuesField(name, value);
+            context.doc().addWithKey(name, field);
+        } else {
+            field.add(value);
+        }
+    }
+
+    private boolean calculate(final SignatureBuffer buffer,
+            final CharSequence value)
+            throws IOException {
+        if (buffer.takePending(this, value)) {
+            // calculated by the parent field, which may have missed the cache
+            if (cache != null) {
+                cache.put(cache.key(cacheKey, value), buffer.encodedString());
+            }
+            return true;
+        }
+        if (cache == null) {
+            return calculateValue(buffer, value);
+        }
+        final MinHashSignatureCache.Key key = cache.key(cacheKey, value);
+        final String cached = cache.get(key);
+        if (cached != null) {
+            buffer.setBase64(cached);
+            return true;
+        }
+        if (!calculateValue(buffer, value)) {
+            return false;
+        }
+        cache.put(key, buffer.encodedString());
+        return true;
+    }
+
+    private boolean calculateValue(final SignatureBuffer buffer,
+            final CharSequence value) throws IOException {
+        if (signatureCalculator != null) {
+            return signatureCalculator.calculate(buffer, fieldType().name(),
+                    value);
+        }
+        return buffer.calculate(minhashAnalyzer, fieldType().name(), value);
+    }
+
+    private void addLshFields(final DocumentParserContext context,
+            final byte[] minhashValue, final int length) {
+        if (length * 8 < lshBands * lshRows) {
+            throw new IllegalArgumentException("The minhash value of field ["
+                    + fieldType().name() + "] has " + length * 8
+                    + " bits, but [lsh_bands] * [lsh_rows] requires "
+                    + lshBands * lshRows + " bits");
+        }
+        final String lshFieldName = fieldType().name() + LSH_FIELD_SUFFIX;
+        for (int i = 0; i < lshBands; i++) {
+            context.doc().add(new Field(lshFieldName,
+                    SignatureUtils.bandTerm(minhashValue, i, lshRows),
+                    Defaults.LSH_FIELD_TYPE));
+        }
+    }
+
+    @Override
+    public boolean parsesArrayValue() {
+        // an array of numbers is a raw minhash value
+        return precomputed;
     }
 
     @Override
     public FieldMapper.Builder getMergeBuilder() {
-        return new MinHashFieldMapper.Builder(simpleName(), null).init(this);
+        return new MinHashFieldMapper.Builder(simpleName(), null, cache, null,
+                executor)
+                .init(this);
     }
 
     @Override
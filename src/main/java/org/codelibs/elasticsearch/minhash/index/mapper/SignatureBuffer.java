@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.mapper;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+
+/**
+ * Per-thread buffer holding a minhash value while a field is parsed. It keeps
+ * both the raw value and its encoded characters, so a value is decoded and
+ * encoded without temporary arrays and strings.
+ *
+ * Data in this buffer is valid until the next calculation on the same thread,
+ * so values added to a document must be copied.
+ */
+final class SignatureBuffer {
+
+    private static final ThreadLocal<SignatureBuffer> BUFFERS = ThreadLocal
+            .withInitial(SignatureBuffer::new);
+
+    private char[] chars = new char[64];
+
+    private int charLength;
+
+    private byte[] bytes = new byte[64];
+
+    private int byteLength;
+
+    private CharSequence pendingText;
+
+    private Object[] pendingOwners;
+
+    private byte[][] pendingSignatures;
+
+    private int pendingCount;
+
+    private SignatureBuffer() {
+        // use get()
+    }
+
+    static SignatureBuffer get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Calculates a minhash value of the text. The analyzer needs to emit a
+     * Base64 minhash value as the first token, as the minhash token filter
+     * does.
+     *
+     * @return false if the analyzer did not emit a token
+     */
+    boolean calculate(final Analyzer analyzer, final String field,
+            final CharSequence text) throws IOException {
+        try (TokenStream stream = tokenStream(analyzer, field, text)) {
+            final CharTermAttribute termAtt = stream
+                    .addAttribute(CharTermAttribute.class);
+            stream.reset();
+            final boolean found = stream.incrementToken();
+            if (found) {
+                setBase64(termAtt.buffer(), 0, termAtt.length());
+            }
+            stream.end();
+            return found;
+        }
+    }
+
+    /**
+     * Creates a token stream which reads the text in place, without copying
+     * it into a string.
+     */
+    static TokenStream tokenStream(final Analyzer analyzer, final String field,
+            final CharSequence text) {
+        if (text instanceof String) {
+            return analyzer.tokenStream(field, (String) text);
+        }
+        return analyzer.tokenStream(field, new CharSequenceReader(text));
+    }
+
+    /**
+     * Sets a Base64 minhash value.
+     */
+    void setBase64(final char[] src, final int offset, final int length) {
+        chars = ArrayUtil.grow(chars, length);
+        System.arraycopy(src, offset, chars, 0, length);
+        decodeChars(length);
+    }
+
+    /**
+     * Sets a Base64 minhash value.
+     */
+    void setBase64(final String value) {
+        final int length = value.length();
+        chars = ArrayUtil.grow(chars, length);
+        value.getChars(0, length, chars, 0);
+        decodeChars(length);
+    }
+
+    private void decodeChars(final int length) {
+        charLength = length;
+        bytes = ArrayUtil.grow(bytes,
+                SignatureUtils.maxBase64DecodedLength(length));
+        byteLength = SignatureUtils.decodeBase64(chars, 0, length, bytes);
+    }
+
+    /**
+     * Sets a raw minhash value.
+     */
+    void setSignature(final byte[] signature) {
+        byteLength = signature.length;
+        bytes = ArrayUtil.grow(bytes, byteLength);
+        System.arraycopy(signature, 0, bytes, 0, byteLength);
+        chars = ArrayUtil.grow(chars,
+                SignatureUtils.base64EncodedLength(byteLength));
+        charLength = SignatureUtils.encodeBase64(bytes, byteLength, chars);
+    }
+
+    /**
+     * Keeps minhash values of multi-fields calculated with the value of the
+     * parent field, until the multi-fields are parsed. The text may be a
+     * view of the parser buffer, which is valid while the parser stays on the
+     * value, so the parent field clears pending values after its
+     * multi-fields are parsed.
+     *
+     * @param owners mappers of the multi-fields
+     */
+    void setPending(final CharSequence text, final Object[] owners,
+            final byte[][] signatures) {
+        pendingText = text;
+        pendingOwners = owners;
+        pendingSignatures = signatures;
+        pendingCount = owners.length;
+    }
+
+    /**
+     * Sets the pending minhash value of the mapper if it was calculated for
+     * the same text.
+     *
+     * @return true if the value is set
+     */
+    boolean takePending(final Object owner, final CharSequence text) {
+        if (pendingOwners == null) {
+            return false;
+        }
+        for (int i = 0; i < pendingOwners.length; i++) {
+            if (pendingOwners[i] == owner && pendingSignatures[i] != null
+                    && CharSequence.compare(pendingText, text) == 0) {
+                setSignature(pendingSignatures[i]);
+                pendingSignatures[i] = null;
+                if (--pendingCount == 0) {
+                    // do not hold the text and mappers
+                    pendingText = null;
+                    pendingOwners = null;
+                    pendingSignatures = null;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes pending minhash values which were not taken, such as values of
+     * multi-fields without index, store and doc values, so the text is not
+     * held by the thread.
+     */
+    void clearPending() {
+        pendingText = null;
+        pendingOwners = null;
+        pendingSignatures = null;
+        pendingCount = 0;
+    }
+
+    /**
+     * Replaces the encoded characters with the bit string of the value.
+     */
+    void toBitString() {
+        charLength = byteLength * 8;
+        chars = ArrayUtil.grow(chars, charLength);
+        SignatureUtils.toBitString(bytes, byteLength, chars);
+    }
+
+    /**
+     * Returns the raw value. Only the first {@link #byteLength()} bytes are
+     * valid.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int byteLength() {
+        return byteLength;
+    }
+
+    /**
+     * Returns a copy of the raw value.
+     */
+    byte[] copyBytes() {
+        return Arrays.copyOf(bytes, byteLength);
+    }
+
+    /**
+     * Returns the encoded characters as a string.
+     */
+    String encodedString() {
+        return new String(chars, 0, charLength);
+    }
+
+    /**
+     * Returns a copy of the encoded characters as bytes. Encoded characters
+     * are ASCII, so no charset encoder is needed.
+     */
+    BytesRef encodedBytes() {
+        final byte[] encoded = new byte[charLength];
+        for (int i = 0; i < charLength; i++) {
+            encoded[i] = (byte) chars[i];
+        }
+        return new BytesRef(encoded);
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.mapper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.codelibs.elasticsearch.minhash.index.analysis.MinHashAccumulator;
+import org.codelibs.elasticsearch.minhash.index.analysis.MinHashTokenFilterFactory;
+import org.codelibs.elasticsearch.minhash.stats.MinHashStats;
+import org.elasticsearch.index.analysis.AnalyzerComponents;
+import org.elasticsearch.index.analysis.AnalyzerComponentsProvider;
+import org.elasticsearch.index.analysis.CustomAnalyzer;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+
+/**
+ * Calculates minhash values from tokens of the minhash analyzer without its
+ * last minhash filter.
+ *
+ * <ul>
+ * <li>Minhash multi-fields whose analyzers have the same char filters,
+ * tokenizer and token filters, except for the last minhash filter, are
+ * calculated with the same tokens.</li>
+ * <li>A text longer than the chunk size is split into chunks at whitespace,
+ * and minimum values of the chunks are calculated in parallel and merged.
+ * The result is the same as long as no token spans whitespace.</li>
+ * </ul>
+ */
+final class SignatureCalculator {
+
+    /** the minhash analyzer without the minhash filter */
+    private final Analyzer tokenAnalyzer;
+
+    /** minhash filters of the field and the multi-fields */
+    private final MinHashTokenFilterFactory[] factories;
+
+    private final MinHashFieldMapper[] multiFields;
+
+    private final MinHashStats.Recorder recorder;
+
+    private final int chunkSize;
+
+    private final Supplier<ExecutorService> executor;
+
+    private SignatureCalculator(final Analyzer tokenAnalyzer,
+            final MinHashTokenFilterFactory[] factories,
+            final MinHashFieldMapper[] multiFields,
+            final MinHashStats.Recorder recorder, final int chunkSize,
+            final Supplier<ExecutorService> executor) {
+        this.tokenAnalyzer = tokenAnalyzer;
+        this.factories = factories;
+        this.multiFields = multiFields;
+        this.recorder = recorder;
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a calculator for the field and its multi-fields.
+     *
+     * @param chunkSize the number of characters of a chunk, or 0 to
+     *            calculate a text at once
+     * @param executor executor to calculate chunks
+     * @return null if neither multi-fields nor chunks are calculated
+     */
+    static SignatureCalculator create(final NamedAnalyzer analyzer,
+            final Iterable<MinHashFieldMapper> multiFields,
+            final MinHashStats.Recorder recorder, final int chunkSize,
+            final Supplier<ExecutorService> executor) {
+        final AnalyzerComponents components = components(analyzer);
+        if (components == null) {
+            return null;
+        }
+        final List<MinHashTokenFilterFactory> factories = new ArrayList<>();
+        final List<MinHashFieldMapper> mappers = new ArrayList<>();
+        factories.add(minHashFilter(components));
+        for (final MinHashFieldMapper multiField : multiFields) {
+            final AnalyzerComponents other = components(
+                    multiField.minhashAnalyzer());
+            if (other != null && sameTokens(components, other)) {
+                factories.add(minHashFilter(other));
+                mappers.add(multiField);
+            }
+        }
+        final boolean chunked = chunkSize > 0 && executor != null;
+        if (mappers.isEmpty() && !chunked) {
+            return null;
+        }
+        final TokenFilterFactory[] tokenFilters = components
+                .getTokenFilters();
+        final Analyzer tokenAnalyzer = new CustomAnalyzer(
+                components.getTokenizerFactory(), components.getCharFilters(),
+                Arrays.copyOf(tokenFilters, tokenFilters.length - 1));
+        return new SignatureCalculator(tokenAnalyzer,
+                factories.toArray(new MinHashTokenFilterFactory[0]),
+                mappers.toArray(new MinHashFieldMapper[0]), recorder,
+                chunked ? chunkSize : 0, executor);
+    }
+
+    /**
+     * Returns components of an analyzer ending with a minhash filter, or
+     * null.
+     */
+    private static AnalyzerComponents components(
+            final NamedAnalyzer analyzer) {
+        if (analyzer == null || !(analyzer
+                .analyzer() instanceof AnalyzerComponentsProvider)) {
+            return null;
+        }
+        final AnalyzerComponents components = ((AnalyzerComponentsProvider) analyzer
+                .analyzer()).getComponents();
+        final TokenFilterFactory[] tokenFilters = components
+                .getTokenFilters();
+        if (tokenFilters.length == 0 || !(tokenFilters[tokenFilters.length
+                - 1] instanceof MinHashTokenFilterFactory)) {
+            return null;
+        }
+        return components;
+    }
+
+    /**
+     * Returns the last minhash filter of the analyzer, or null.
+     */
+    static MinHashTokenFilterFactory minHashFilter(
+            final NamedAnalyzer analyzer) {
+        final AnalyzerComponents components = components(analyzer);
+        return components != null ? minHashFilter(components) : null;
+    }
+
+    private static MinHashTokenFilterFactory minHashFilter(
+            final AnalyzerComponents components) {
+        final TokenFilterFactory[] tokenFilters = components
+                .getTokenFilters();
+        return (MinHashTokenFilterFactory) tokenFilters[tokenFilters.length
+                - 1];
+    }
+
+    /**
+     * Factories are created once per index, so the same components are the
+     * same instances.
+     */
+    private static boolean sameTokens(final AnalyzerComponents c1,
+            final AnalyzerComponents c2) {
+        if (c1.getTokenizerFactory() != c2.getTokenizerFactory()
+                || c1.getCharFilters().length != c2.getCharFilters().length
+                || c1.getTokenFilters().length != c2
+                        .getTokenFilters().length) {
+            return false;
+        }
+        for (int i = 0; i < c1.getCharFilters().length; i++) {
+            if (c1.getCharFilters()[i] != c2.getCharFilters()[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < c1.getTokenFilters().length - 1; i++) {
+            if (c1.getTokenFilters()[i] != c2.getTokenFilters()[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates minhash values of the text. The value of the field is set
+     * to the buffer, and the values of the multi-fields are kept in the
+     * buffer until they are parsed.
+     */
+    boolean calculate(final SignatureBuffer buffer, final String field,
+            final CharSequence text) throws IOException {
+        final MinHashAccumulator[] accumulators = newAccumulators();
+        final long count;
+        if (chunkSize > 0 && text.length() > chunkSize) {
+            count = accumulateChunks(field, text, accumulators);
+        } else {
+            count = accumulate(field, text, accumulators, false);
+        }
+        if (recorder != null) {
+            recorder.onTokens(count * factories.length);
+        }
+        buffer.setSignature(accumulators[0].toSignature());
+        if (multiFields.length > 0) {
+            final byte[][] signatures = new byte[multiFields.length][];
+            for (int i = 0; i < multiFields.length; i++) {
+                signatures[i] = accumulators[i + 1].toSignature();
+            }
+            buffer.setPending(text, multiFields, signatures);
+        }
+        return true;
+    }
+
+    private MinHashAccumulator[] newAccumulators() {
+        final MinHashAccumulator[] accumulators = new MinHashAccumulator[factories.length];
+        for (int i = 0; i < factories.length; i++) {
+            accumulators[i] = factories[i].newAccumulator();
+        }
+        return accumulators;
+    }
+
+    /**
+     * Adds tokens of the text to the accumulators.
+     *
+     * @param interruptible true to stop if the thread is interrupted, such as
+     *            a chunk whose calculation is cancelled
+     * @return the number of tokens
+     */
+    private long accumulate(final String field, final CharSequence text,
+            final MinHashAccumulator[] accumulators,
+            final boolean interruptible) throws IOException {
+        long count = 0;
+        try (TokenStream stream = SignatureBuffer.tokenStream(tokenAnalyzer,
+                field, text)) {
+            final CharTermAttribute termAtt = stream
+                    .addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                for (final MinHashAccumulator accumulator : accumulators) {
+                    accumulator.add(termAtt);
+                }
+                count++;
+                if (interruptible && (count & 0x3ff) == 0
+                        && Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException(
+                            "Cancelled calculation of a minhash value");
+                }
+            }
+            stream.end();
+        }
+        return count;
+    }
+
+    /**
+     * Calculates the first chunk on the current thread and the others on the
+     * executor, and merges minimum values of the chunks in the order of the
+     * text. A chunk is calculated on the current thread if the executor
+     * rejects it. If a chunk fails, the other chunks are cancelled, because
+     * they may be views of a parser buffer which is reused after this
+     * method.
+     */
+    private long accumulateChunks(final String field, final CharSequence text,
+            final MinHashAccumulator[] accumulators) throws IOException {
+        final int[] bounds = chunkBounds(text, chunkSize);
+        final ExecutorService executorService = executor.get();
+        final List<Future<ChunkResult>> futures = new ArrayList<>();
+        long count = 0;
+        try {
+            for (int i = 1; i < bounds.length - 1; i++) {
+                final CharSequence chunk = text.subSequence(bounds[i],
+                        bounds[i + 1]);
+                Future<ChunkResult> future = null;
+                if (executorService != null) {
+                    try {
+                        future = executorService.submit(() -> {
+                            final MinHashAccumulator[] chunkAccumulators = newAccumulators();
+                            try {
+                                return new ChunkResult(chunkAccumulators,
+                                        accumulate(field, chunk,
+                                                chunkAccumulators, true));
+                            } catch (final IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                    } catch (final RejectedExecutionException e) {
+                        // calculate on this thread
+                    }
+                }
+                if (future == null) {
+                    final MinHashAccumulator[] chunkAccumulators = newAccumulators();
+                    future = CompletableFuture.completedFuture(
+                            new ChunkResult(chunkAccumulators, accumulate(
+                                    field, chunk, chunkAccumulators, false)));
+                }
+                futures.add(future);
+            }
+            count += accumulate(field, text.subSequence(0, bounds[1]),
+                    accumulators, false);
+
+            for (final Future<ChunkResult> future : futures) {
+                final ChunkResult result;
+                try {
+                    result = future.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(
+                            "Interrupted while calculating a minhash value",
+                            e);
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) cause).getCause();
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException(
+                            "Failed to calculate a minhash value", cause);
+                }
+                for (int i = 0; i < accumulators.length; i++) {
+                    accumulators[i].merge(result.accumulators[i]);
+                }
+                count += result.count;
+            }
+        } finally {
+            // chunks are not used after a failure
+            for (final Future<ChunkResult> future : futures) {
+                if (!future.isDone()) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Splits the text into chunks of about {@code chunkSize} characters. A
+     * chunk ends before whitespace, so tokens are not split.
+     *
+     * @return start offsets of chunks and the length of the text
+     */
+    static int[] chunkBounds(final CharSequence text, final int chunkSize) {
+        final List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        int pos = chunkSize;
+        while (pos < text.length()) {
+            while (pos < text.length()
+                    && !Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= text.length()) {
+                break;
+            }
+            bounds.add(pos);
+            pos += chunkSize;
+        }
+        bounds.add(text.length());
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static class ChunkResult {
+
+        final MinHashAccumulator[] accumulators;
+
+        final long count;
+
+        ChunkResult(final MinHashAccumulator[] accumulators,
+                final long count) {
+            this.accumulators = accumulators;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryTimeout;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.LongHeap;
+import org.codelibs.elasticsearch.minhash.index.fielddata.MinHashSignatureValues;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+import org.elasticsearch.search.internal.ContextIndexSearcher;
+
+/**
+ * Finds the {@code k} documents with the smallest Hamming distance to the
+ * given minhash value. The documents are collected when the query is
+ * rewritten, and the query is rewritten to {@link TopDocsQuery}, which scores
+ * them by the ratio of the same bits.
+ *
+ * Once {@code k} documents are collected, comparison of a document stops as
+ * soon as its distance exceeds the current k-th distance, and the scan stops
+ * when k identical values are found.
+ *
+ * The scan checks cancellation of the search task and the timeout of the
+ * searcher for each segment and every {@value #CHECK_INTERVAL} documents.
+ * A cancelled search fails, and a timed out scan returns the documents
+ * collected so far.
+ */
+public class MinHashKnnQuery extends Query {
+
+    static final int CHECK_INTERVAL = 1024;
+
+    private final MinHashFieldType fieldType;
+
+    private final byte[] signature;
+
+    private final int k;
+
+    private final Query candidateQuery;
+
+    /**
+     * @param candidateQuery a query which selects documents to compare
+     *            (e.g. LSH bands), or null to compare all documents
+     */
+    public MinHashKnnQuery(final MinHashFieldType fieldType,
+            final byte[] signature, final int k, final Query candidateQuery) {
+        this.fieldType = fieldType;
+        this.signature = signature;
+        this.k = k;
+        this.candidateQuery = candidateQuery;
+    }
+
+    public String field() {
+        return fieldType.name();
+    }
+
+    public int k() {
+        return k;
+    }
+
+    @Override
+    public Query rewrite(final IndexSearcher searcher) throws IOException {
+        final int numBits = signature.length * 8;
+        final int numWords = SignatureUtils.numWords(signature.length);
+        final long[] words = new long[numWords];
+        SignatureUtils.toWords(signature, signature.length, words);
+
+        final Weight candidateWeight = candidateQuery == null ? null
+                : searcher.createWeight(searcher.rewrite(candidateQuery),
+                        ScoreMode.COMPLETE_NO_SCORES, 1f);
+
+        // entries are -(distance << 32 | doc), so the top is the worst one
+        final LongHeap heap = new LongHeap(k);
+        int numVisited = 0;
+        for (final LeafReaderContext context : searcher.getIndexReader()
+                .leaves()) {
+            if (shouldExit(searcher)) {
+                break;
+            }
+            final MinHashSignatureValues values = MinHashSignatureValues
+                    .load(context.reader(), fieldType);
+            final DocIdSetIterator iterator;
+            if (candidateWeight == null) {
+                iterator = values.iterator();
+            } else {
+                final Scorer scorer = candidateWeight.scorer(context);
+                if (scorer == null) {
+                    continue;
+                }
+                iterator = scorer.iterator();
+            }
+            final Bits liveDocs = context.reader().getLiveDocs();
+            for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator
+                    .nextDoc()) {
+                if (++numVisited % CHECK_INTERVAL == 0
+                        && shouldExit(searcher)) {
+                    return topDocsQuery(searcher, heap, numBits);
+                }
+                if (liveDocs != null && !liveDocs.get(doc)
+                        || candidateWeight != null
+                                && !values.advanceExact(doc)) {
+                    continue;
+                }
+                values.decode();
+                if (values.numBytes() != signature.length) {
+                    continue;
+                }
+                final boolean full = heap.size() >= k;
+                // documents are visited in order, so ties are not better
+                final int limit = full ? (int) (-heap.top() >>> 32) - 1
+                        : numBits;
+                final int distance = SignatureUtils.countDifferentBits(words,
+                        values.words(), numWords, limit);
+                if (distance > limit) {
+                    continue;
+                }
+                final long entry = -((long) distance << 32
+                        | (context.docBase + doc));
+                if (full) {
+                    heap.updateTop(entry);
+                } else {
+                    heap.push(entry);
+                }
+                if (heap.size() >= k && heap.top() > -(1L << 32)) {
+                    // k documents with the same value
+                    return topDocsQuery(searcher, heap, numBits);
+                }
+            }
+        }
+        return topDocsQuery(searcher, heap, numBits);
+    }
+
+    /**
+     * Throws an exception if the search task is cancelled, and returns true
+     * if the search timed out.
+     */
+    private static boolean shouldExit(final IndexSearcher searcher) {
+        if (searcher instanceof ContextIndexSearcher) {
+            ((ContextIndexSearcher) searcher).checkCancelled();
+        }
+        final QueryTimeout timeout = searcher.getTimeout();
+        return timeout != null && timeout.shouldExit();
+    }
+
+    private Query topDocsQuery(final IndexSearcher searcher,
+            final LongHeap heap, final int numBits) {
+        if (heap.size() == 0) {
+            return new MatchNoDocsQuery("no minhash value in ["
+                    + fieldType.name() + "]");
+        }
+        final int size = heap.size();
+        // sort by doc
+        final long[] entries = new long[size];
+        for (int i = 0; i < size; i++) {
+            final long entry = -heap.get(i + 1);
+            entries[i] = (entry & 0xffffffffL) << 32 | entry >>> 32;
+        }
+        Arrays.sort(entries);
+        final int[] docs = new int[size];
+        final float[] scores = new float[size];
+        for (int i = 0; i < size; i++) {
+            docs[i] = (int) (entries[i] >>> 32);
+            scores[i] = (float) (numBits - (int) entries[i]) / numBits;
+        }
+        return new TopDocsQuery(searcher.getIndexReader(), docs, scores);
+    }
+
+    @Override
+    public void visit(final QueryVisitor visitor) {
+        if (visitor.acceptField(fieldType.name())) {
+            visitor.visitLeaf(this);
+        }
+    }
+
+    @Override
+    public String toString(final String field) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("MinHashKnnQuery(");
+        if (!fieldType.name().equals(field)) {
+            buf.append(fieldType.name()).append(':');
+        }
+        buf.append(Arrays.toString(signature)).append(", k=").append(k);
+        if (candidateQuery != null) {
+            buf.append(", candidates=").append(candidateQuery);
+        }
+        return buf.append(')').toString();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!sameClassAs(obj)) {
+            return false;
+        }
+        final MinHashKnnQuery other = (MinHashKnnQuery) obj;
+        return fieldType.name().equals(other.fieldType.name())
+                && Arrays.equals(signature, other.signature) && k == other.k
+                && Objects.equals(candidateQuery, other.candidateQuery);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), fieldType.name(),
+                Arrays.hashCode(signature), k, candidateQuery);
+    }
+}
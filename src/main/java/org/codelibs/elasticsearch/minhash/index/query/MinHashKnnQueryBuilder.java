@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.query;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.TransportVersions;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.SearchExecutionContext;
+import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+/**
+ * A query that finds the {@code k} documents with minhash values most
+ * similar to the minhash value of the given text, or to the given minhash
+ * value, on each shard.
+ *
+ * <pre>
+ * "minhash_knn": {
+ *   "field": "minhash_value",
+ *   "query": "Fess is Java based full text search server.",
+ *   "k": 10
+ * }
+ * </pre>
+ */
+public class MinHashKnnQueryBuilder
+        extends AbstractQueryBuilder<MinHashKnnQueryBuilder> {
+
+    public static final String NAME = "minhash_knn";
+
+    public static final ParseField K_FIELD = new ParseField("k");
+
+    public static final int DEFAULT_K = 10;
+
+    public static final int MAX_K = 10000;
+
+    private final String fieldName;
+
+    private final String query;
+
+    private final String value;
+
+    private int k = DEFAULT_K;
+
+    private boolean useLsh = MinHashSimilarityQueryBuilder.DEFAULT_USE_LSH;
+
+    /**
+     * @param fieldName minhash field
+     * @param query text to calculate a minhash value, or null
+     * @param value minhash value in the form of the field, or null
+     */
+    public MinHashKnnQueryBuilder(final String fieldName, final String query,
+            final String value) {
+        if (fieldName == null) {
+            throw new IllegalArgumentException(
+                    "[" + NAME + "] requires a field");
+        }
+        if ((query == null) == (value == null)) {
+            throw new IllegalArgumentException("[" + NAME
+                    + "] requires either [query] or [value]");
+        }
+        this.fieldName = fieldName;
+        this.query = query;
+        this.value = value;
+    }
+
+    public MinHashKnnQueryBuilder(final StreamInput in) throws IOException {
+        super(in);
+        fieldName = in.readString();
+        query = in.readOptionalString();
+        value = in.readOptionalString();
+        k = in.readVInt();
+        useLsh = in.readBoolean();
+    }
+
+    @Override
+    protected void doWriteTo(final StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeOptionalString(query);
+        out.writeOptionalString(value);
+        out.writeVInt(k);
+        out.writeBoolean(useLsh);
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public String query() {
+        return query;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public MinHashKnnQueryBuilder k(final int k) {
+        if (k < 1 || k > MAX_K) {
+            throw new IllegalArgumentException("[" + NAME
+                    + "] requires [k] between 1 and " + MAX_K + ", got " + k);
+        }
+        this.k = k;
+        return this;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    /**
+     * Compares only documents sharing at least one LSH band, so the result
+     * is approximate. Documents in other bands are not found even if fewer
+     * than {@code k} documents are found.
+     */
+    public MinHashKnnQueryBuilder useLsh(final boolean useLsh) {
+        this.useLsh = useLsh;
+        return this;
+    }
+
+    public boolean useLsh() {
+        return useLsh;
+    }
+
+    @Override
+    protected void doXContent(final XContentBuilder builder,
+            final Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(MinHashSimilarityQueryBuilder.FIELD_FIELD
+                .getPreferredName(), fieldName);
+        if (query != null) {
+            builder.field(MinHashSimilarityQueryBuilder.QUERY_FIELD
+                    .getPreferredName(), query);
+        }
+        if (value != null) {
+            builder.field(MinHashSimilarityQueryBuilder.VALUE_FIELD
+                    .getPreferredName(), value);
+        }
+        builder.field(K_FIELD.getPreferredName(), k);
+        builder.field(MinHashSimilarityQueryBuilder.USE_LSH_FIELD
+                .getPreferredName(), useLsh);
+        boostAndQueryNameToXContent(builder);
+        builder.endObject();
+    }
+
+    public static MinHashKnnQueryBuilder fromXContent(
+            final XContentParser parser) throws IOException {
+        String fieldName = null;
+        String query = null;
+        String value = null;
+        int k = DEFAULT_K;
+        boolean useLsh = MinHashSimilarityQueryBuilder.DEFAULT_USE_LSH;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String queryName = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (MinHashSimilarityQueryBuilder.FIELD_FIELD
+                        .match(currentFieldName, parser.getDeprecationHandler())) {
+                    fieldName = parser.text();
+                } else if (MinHashSimilarityQueryBuilder.QUERY_FIELD
+                        .match(currentFieldName, parser.getDeprecationHandler())) {
+                    query = parser.text();
+                } else if (MinHashSimilarityQueryBuilder.VALUE_FIELD
+                        .match(currentFieldName, parser.getDeprecationHandler())) {
+                    value = parser.text();
+                } else if (K_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    k = parser.intValue();
+                } else if (MinHashSimilarityQueryBuilder.USE_LSH_FIELD
+                        .match(currentFieldName, parser.getDeprecationHandler())) {
+                    useLsh = parser.booleanValue();
+                } else if (AbstractQueryBuilder.BOOST_FIELD.match(
+                        currentFieldName, parser.getDeprecationHandler())) {
+                    boost = parser.floatValue();
+                } else if (AbstractQueryBuilder.NAME_FIELD.match(
+                        currentFieldName, parser.getDeprecationHandler())) {
+                    queryName = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] query does not support ["
+                                    + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[" + NAME
+                        + "] unknown token [" + token + "] after ["
+                        + currentFieldName + "]");
+            }
+        }
+
+        try {
+            return new MinHashKnnQueryBuilder(fieldName, query, value).k(k)
+                    .useLsh(useLsh).boost(boost).queryName(queryName);
+        } catch (final IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(),
+                    e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected Query doToQuery(final SearchExecutionContext context)
+            throws IOException {
+        final MinHashFieldType fieldType = MinHashSimilarityQueryBuilder
+                .minHashFieldType(context, fieldName, NAME);
+        if (fieldType == null) {
+            return new MatchNoDocsQuery("unmapped field [" + fieldName + "]");
+        }
+        final byte[] signature = MinHashSimilarityQueryBuilder
+                .signature(fieldType, query, value);
+        if (signature == null) {
+            return new MatchNoDocsQuery("no minhash value");
+        }
+        final Query candidateQuery = useLsh && fieldType.hasLsh()
+                ? fieldType.lshQuery(signature, 1)
+                : null;
+        return new MinHashKnnQuery(fieldType, signature, k, candidateQuery);
+    }
+
+    @Override
+    protected boolean doEquals(final MinHashKnnQueryBuilder other) {
+        return Objects.equals(fieldName, other.fieldName)
+                && Objects.equals(query, other.query)
+                && Objects.equals(value, other.value) && k == other.k
+                && useLsh == other.useLsh;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, query, value, k, useLsh);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    @Override
+    public TransportVersion getMinimalSupportedVersion() {
+        return TransportVersions.ZERO;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.codelibs.elasticsearch.minhash.index.fielddata.MinHashSignatureValues;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+
+/**
+ * Matches documents whose minhash value is similar to the given one, and
+ * scores them by the ratio of the same bits.
+ */
+public class MinHashSimilarityQuery extends Query {
+
+    private final MinHashFieldType fieldType;
+
+    private final byte[] signature;
+
+    private final float minSimilarity;
+
+    public MinHashSimilarityQuery(final MinHashFieldType fieldType,
+            final byte[] signature, final float minSimilarity) {
+        this.fieldType = fieldType;
+        this.signature = signature;
+        this.minSimilarity = minSimilarity;
+    }
+
+    public String field() {
+        return fieldType.name();
+    }
+
+    public byte[] signature() {
+        return signature;
+    }
+
+    public float minSimilarity() {
+        return minSimilarity;
+    }
+
+    @Override
+    public Weight createWeight(final IndexSearcher searcher,
+            final ScoreMode scoreMode, final float boost) throws IOException {
+        final long[] words = new long[SignatureUtils
+                .numWords(signature.length)];
+        SignatureUtils.toWords(signature, signature.length, words);
+        final int maxDifferentBits = SignatureUtils
+                .maxDifferentBits(signature.length * 8, minSimilarity);
+        return new Weight(this) {
+
+            @Override
+            public Scorer scorer(final LeafReaderContext context)
+                    throws IOException {
+                final MinHashSignatureValues values = MinHashSignatureValues
+                        .load(context.reader(), fieldType);
+                return new SimilarityScorer(this, values, words,
+                        maxDifferentBits, boost);
+            }
+
+            @Override
+            public Explanation explain(final LeafReaderContext context,
+                    final int doc) throws IOException {
+                final MinHashSignatureValues values = MinHashSignatureValues
+                        .load(context.reader(), fieldType);
+                if (!values.advanceExact(doc)) {
+                    return Explanation.noMatch("no minhash value in ["
+                            + fieldType.name() + "]");
+                }
+                values.decode();
+                final float similarity = similarity(values, words);
+                if (similarity < minSimilarity) {
+                    return Explanation.noMatch("similarity " + similarity
+                            + " is less than " + minSimilarity);
+                }
+                return Explanation.match(similarity * boost,
+                        "minhash similarity in [" + fieldType.name()
+                                + "], product of:",
+                        Explanation.match(similarity, "similarity"),
+                        Explanation.match(boost, "boost"));
+            }
+
+            @Override
+            public boolean isCacheable(final LeafReaderContext context) {
+                return DocValues.isCacheable(context, fieldType.name());
+            }
+        };
+    }
+
+    float similarity(final MinHashSignatureValues values, final long[] words) {
+        if (values.numBytes() != signature.length) {
+            return 0f;
+        }
+        return SignatureUtils.similarity(words, values.words(),
+                signature.length);
+    }
+
+    class SimilarityScorer extends Scorer {
+
+        private final DocIdSetIterator approximation;
+
+        private final TwoPhaseIterator twoPhase;
+
+        private final float boost;
+
+        private float similarity;
+
+        SimilarityScorer(final Weight weight,
+                final MinHashSignatureValues values, final long[] words,
+                final int maxDifferentBits, final float boost) {
+            super(weight);
+            this.boost = boost;
+            approximation = values.iterator();
+            twoPhase = new TwoPhaseIterator(approximation) {
+                @Override
+                public boolean matches() throws IOException {
+                    values.decode();
+                    if (signature.length == 0
+                            || values.numBytes() != signature.length) {
+                        similarity = 0f;
+                        return similarity >= minSimilarity;
+                    }
+                    // stops counting once the value cannot be similar
+                    final int numBits = signature.length * 8;
+                    final int differentBits = SignatureUtils
+                            .countDifferentBits(words, values.words(),
+                                    words.length, maxDifferentBits);
+                    if (differentBits > maxDifferentBits) {
+                        return false;
+                    }
+                    similarity = (float) (numBits - differentBits) / numBits;
+                    return true;
+                }
+
+                @Override
+                public float matchCost() {
+                    return words.length * 4;
+                }
+            };
+        }
+
+        @Override
+        public int docID() {
+            return approximation.docID();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return TwoPhaseIterator.asDocIdSetIterator(twoPhase);
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return twoPhase;
+        }
+
+        @Override
+        public float getMaxScore(final int upTo) throws IOException {
+            return boost;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return similarity * boost;
+        }
+    }
+
+    @Override
+    public void visit(final QueryVisitor visitor) {
+        if (visitor.acceptField(fieldType.name())) {
+            visitor.visitLeaf(this);
+        }
+    }
+
+    @Override
+    public String toString(final String field) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("MinHashSimilarityQuery(");
+        if (!fieldType.name().equals(field)) {
+            buf.append(fieldType.name()).append(':');
+        }
+        buf.append(Arrays.toString(signature)).append(", min_similarity=")
+                .append(minSimilarity).append(')');
+        return buf.toString();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!sameClassAs(obj)) {
+            return false;
+        }
+        final MinHashSimilarityQuery other = (MinHashSimilarityQuery) obj;
+        return fieldType.name().equals(other.fieldType.name())
+                && Arrays.equals(signature, other.signature)
+                && minSimilarity == other.minSimilarity;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), fieldType.name(),
+                Arrays.hashCode(signature), minSimilarity);
+    }
+}
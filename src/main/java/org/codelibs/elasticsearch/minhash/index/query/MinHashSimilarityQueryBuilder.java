@@ -0,0 +1,308 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.query;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.TransportVersions;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.SearchExecutionContext;
+import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+/**
+ * A query that finds documents with a minhash value similar to the minhash
+ * value of the given text, or to the given minhash value.
+ *
+ * <pre>
+ * "minhash_similarity": {
+ *   "field": "minhash_value",
+ *   "query": "Fess is Java based full text search server.",
+ *   "min_similarity": 0.8
+ * }
+ * </pre>
+ */
+public class MinHashSimilarityQueryBuilder
+        extends AbstractQueryBuilder<MinHashSimilarityQueryBuilder> {
+
+    public static final String NAME = "minhash_similarity";
+
+    public static final ParseField FIELD_FIELD = new ParseField("field");
+
+    public static final ParseField QUERY_FIELD = new ParseField("query");
+
+    public static final ParseField VALUE_FIELD = new ParseField("value");
+
+    public static final ParseField MIN_SIMILARITY_FIELD = new ParseField(
+            "min_similarity");
+
+    public static final ParseField USE_LSH_FIELD = new ParseField("use_lsh");
+
+    public static final float DEFAULT_MIN_SIMILARITY = 0f;
+
+    public static final boolean DEFAULT_USE_LSH = false;
+
+    private final String fieldName;
+
+    private final String query;
+
+    private final String value;
+
+    private float minSimilarity = DEFAULT_MIN_SIMILARITY;
+
+    private boolean useLsh = DEFAULT_USE_LSH;
+
+    /**
+     * @param fieldName minhash field
+     * @param query text to calculate a minhash value, or null
+     * @param value minhash value in the form of the field, or null
+     */
+    public MinHashSimilarityQueryBuilder(final String fieldName,
+            final String query, final String value) {
+        if (fieldName == null) {
+            throw new IllegalArgumentException(
+                    "[" + NAME + "] requires a field");
+        }
+        if ((query == null) == (value == null)) {
+            throw new IllegalArgumentException("[" + NAME
+                    + "] requires either [query] or [value]");
+        }
+        this.fieldName = fieldName;
+        this.query = query;
+        this.value = value;
+    }
+
+    public MinHashSimilarityQueryBuilder(final StreamInput in)
+            throws IOException {
+        super(in);
+        fieldName = in.readString();
+        query = in.readOptionalString();
+        value = in.readOptionalString();
+        minSimilarity = in.readFloat();
+        useLsh = in.readBoolean();
+    }
+
+    @Override
+    protected void doWriteTo(final StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeOptionalString(query);
+        out.writeOptionalString(value);
+        out.writeFloat(minSimilarity);
+        out.writeBoolean(useLsh);
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public String query() {
+        return query;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public MinHashSimilarityQueryBuilder minSimilarity(
+            final float minSimilarity) {
+        if (minSimilarity < 0f || minSimilarity > 1f) {
+            throw new IllegalArgumentException("[" + NAME
+                    + "] requires [min_similarity] between 0 and 1, got "
+                    + minSimilarity);
+        }
+        this.minSimilarity = minSimilarity;
+        return this;
+    }
+
+    public float minSimilarity() {
+        return minSimilarity;
+    }
+
+    /**
+     * Compares only documents sharing at least one LSH band, so the result
+     * is approximate. A document above the minimum similarity is not found
+     * if it shares no band.
+     */
+    public MinHashSimilarityQueryBuilder useLsh(final boolean useLsh) {
+        this.useLsh = useLsh;
+        return this;
+    }
+
+    public boolean useLsh() {
+        return useLsh;
+    }
+
+    @Override
+    protected void doXContent(final XContentBuilder builder,
+            final Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(FIELD_FIELD.getPreferredName(), fieldName);
+        if (query != null) {
+            builder.field(QUERY_FIELD.getPreferredName(), query);
+        }
+        if (value != null) {
+            builder.field(VALUE_FIELD.getPreferredName(), value);
+        }
+        builder.field(MIN_SIMILARITY_FIELD.getPreferredName(), minSimilarity);
+        builder.field(USE_LSH_FIELD.getPreferredName(), useLsh);
+        boostAndQueryNameToXContent(builder);
+        builder.endObject();
+    }
+
+    public static MinHashSimilarityQueryBuilder fromXContent(
+            final XContentParser parser) throws IOException {
+        String fieldName = null;
+        String query = null;
+        String value = null;
+        float minSimilarity = DEFAULT_MIN_SIMILARITY;
+        boolean useLsh = DEFAULT_USE_LSH;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String queryName = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (FIELD_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    fieldName = parser.text();
+                } else if (QUERY_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    query = parser.text();
+                } else if (VALUE_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    value = parser.text();
+                } else if (MIN_SIMILARITY_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    minSimilarity = parser.floatValue();
+                } else if (USE_LSH_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    useLsh = parser.booleanValue();
+                } else if (AbstractQueryBuilder.BOOST_FIELD.match(
+                        currentFieldName, parser.getDeprecationHandler())) {
+                    boost = parser.floatValue();
+                } else if (AbstractQueryBuilder.NAME_FIELD.match(
+                        currentFieldName, parser.getDeprecationHandler())) {
+                    queryName = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] query does not support ["
+                                    + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[" + NAME
+                        + "] unknown token [" + token + "] after ["
+                        + currentFieldName + "]");
+            }
+        }
+
+        try {
+            return new MinHashSimilarityQueryBuilder(fieldName, query, value)
+                    .minSimilarity(minSimilarity).useLsh(useLsh).boost(boost)
+                    .queryName(queryName);
+        } catch (final IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(),
+                    e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected Query doToQuery(final SearchExecutionContext context)
+            throws IOException {
+        final MinHashFieldType fieldType = minHashFieldType(context,
+                fieldName, NAME);
+        if (fieldType == null) {
+            return new MatchNoDocsQuery("unmapped field [" + fieldName + "]");
+        }
+        final byte[] signature = signature(fieldType, query, value);
+        if (signature == null) {
+            return new MatchNoDocsQuery("no minhash value");
+        }
+        final Query similarityQuery = new MinHashSimilarityQuery(fieldType,
+                signature, minSimilarity);
+        if (!useLsh || !fieldType.hasLsh()) {
+            return similarityQuery;
+        }
+        return new BooleanQuery.Builder().add(similarityQuery, Occur.MUST)
+                .add(fieldType.lshQuery(signature, 1), Occur.FILTER).build();
+    }
+
+    static MinHashFieldType minHashFieldType(
+            final SearchExecutionContext context, final String fieldName,
+            final String queryName) {
+        final MappedFieldType fieldType = context.getFieldType(fieldName);
+        if (fieldType == null) {
+            return null;
+        }
+        if (!(fieldType instanceof MinHashFieldType)) {
+            throw new IllegalArgumentException("[" + queryName
+                    + "] query requires a minhash field, but [" + fieldName
+                    + "] is of type [" + fieldType.typeName() + "]");
+        }
+        if (!fieldType.hasDocValues()) {
+            throw new IllegalArgumentException("[" + queryName
+                    + "] query requires doc values on field [" + fieldName
+                    + "]");
+        }
+        return (MinHashFieldType) fieldType;
+    }
+
+    static byte[] signature(final MinHashFieldType fieldType,
+            final String query, final String value) throws IOException {
+        if (query != null) {
+            return fieldType.calculate(query);
+        }
+        return fieldType.decode(value);
+    }
+
+    @Override
+    protected boolean doEquals(final MinHashSimilarityQueryBuilder other) {
+        return Objects.equals(fieldName, other.fieldName)
+                && Objects.equals(query, other.query)
+                && Objects.equals(value, other.value)
+                && minSimilarity == other.minSimilarity
+                && useLsh == other.useLsh;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, query, value, minSimilarity, useLsh);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    @Override
+    public TransportVersion getMinimalSupportedVersion() {
+        return TransportVersions.ZERO;
+    }
+}
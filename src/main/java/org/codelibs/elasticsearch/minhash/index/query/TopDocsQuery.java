@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Matches the given documents of a reader with the given scores.
+ */
+final class TopDocsQuery extends Query {
+
+    /** top-level doc ids in ascending order */
+    private final int[] docs;
+
+    private final float[] scores;
+
+    /** the first index of {@link #docs} in each segment */
+    private final int[] segmentStarts;
+
+    private final Object contextIdentity;
+
+    TopDocsQuery(final IndexReader reader, final int[] docs,
+            final float[] scores) {
+        this.docs = docs;
+        this.scores = scores;
+        final List<LeafReaderContext> leaves = reader.leaves();
+        segmentStarts = new int[leaves.size() + 1];
+        int index = 0;
+        for (final LeafReaderContext leaf : leaves) {
+            segmentStarts[leaf.ord] = index;
+            final int maxDoc = leaf.docBase + leaf.reader().maxDoc();
+            while (index < docs.length && docs[index] < maxDoc) {
+                index++;
+            }
+        }
+        segmentStarts[leaves.size()] = index;
+        contextIdentity = reader.getContext().id();
+    }
+
+    @Override
+    public Weight createWeight(final IndexSearcher searcher,
+            final ScoreMode scoreMode, final float boost) throws IOException {
+        if (searcher.getIndexReader().getContext().id() != contextIdentity) {
+            throw new IllegalStateException(
+                    "This query was created by a different reader");
+        }
+        return new Weight(this) {
+
+            @Override
+            public Scorer scorer(final LeafReaderContext context)
+                    throws IOException {
+                final int start = segmentStarts[context.ord];
+                final int end = segmentStarts[context.ord + 1];
+                if (start == end) {
+                    return null;
+                }
+                return new DocsScorer(this, context.docBase, start, end,
+                        boost);
+            }
+
+            @Override
+            public Explanation explain(final LeafReaderContext context,
+                    final int doc) throws IOException {
+                final int index = Arrays.binarySearch(docs,
+                        segmentStarts[context.ord],
+                        segmentStarts[context.ord + 1],
+                        context.docBase + doc);
+                if (index < 0) {
+                    return Explanation.noMatch("not in the top documents");
+                }
+                return Explanation.match(scores[index] * boost,
+                        "minhash similarity, product of:",
+                        Explanation.match(scores[index], "similarity"),
+                        Explanation.match(boost, "boost"));
+            }
+
+            @Override
+            public boolean isCacheable(final LeafReaderContext context) {
+                return true;
+            }
+        };
+    }
+
+    private class DocsScorer extends Scorer {
+
+        private final int docBase;
+
+        private final int start;
+
+        private final int end;
+
+        private final float boost;
+
+        private int index;
+
+        DocsScorer(final Weight weight, final int docBase, final int start,
+                final int end, final float boost) {
+            super(weight);
+            this.docBase = docBase;
+            this.start = start;
+            this.end = end;
+            this.boost = boost;
+            index = start - 1;
+        }
+
+        @Override
+        public int docID() {
+            if (index < start) {
+                return -1;
+            }
+            if (index >= end) {
+                return DocIdSetIterator.NO_MORE_DOCS;
+            }
+            return docs[index] - docBase;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return new DocIdSetIterator() {
+                @Override
+                public int docID() {
+                    return DocsScorer.this.docID();
+                }
+
+                @Override
+                public int nextDoc() {
+                    index++;
+                    return docID();
+                }
+
+                @Override
+                public int advance(final int target) {
+                    final int from = Math.max(index + 1, start);
+                    if (from >= end) {
+                        index = end;
+                        return DocIdSetIterator.NO_MORE_DOCS;
+                    }
+                    // docs are sorted
+                    final int found = Arrays.binarySearch(docs, from, end,
+                            docBase + target);
+                    index = found >= 0 ? found : -1 - found;
+                    return docID();
+                }
+
+                @Override
+                public long cost() {
+                    return end - start;
+                }
+            };
+        }
+
+        @Override
+        public float getMaxScore(final int upTo) {
+            return boost;
+        }
+
+        @Override
+        public float score() {
+            return scores[index] * boost;
+        }
+    }
+
+    @Override
+    public void visit(final QueryVisitor visitor) {
+        visitor.visitLeaf(this);
+    }
+
+    @Override
+    public String toString(final String field) {
+        return "TopDocsQuery(" + docs.length + " docs)";
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!sameClassAs(obj)) {
+            return false;
+        }
+        final TopDocsQuery other = (TopDocsQuery) obj;
+        return contextIdentity == other.contextIdentity
+                && Arrays.equals(docs, other.docs)
+                && Arrays.equals(scores, other.scores);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), contextIdentity,
+                Arrays.hashCode(docs), Arrays.hashCode(scores));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.ingest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.codelibs.elasticsearch.minhash.index.analysis.MinHashAccumulator;
+import org.codelibs.elasticsearch.minhash.index.analysis.MinHashTokenFilterFactory;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.index.analysis.AnalyzerComponents;
+import org.elasticsearch.index.analysis.CharFilterFactory;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.ingest.IngestDocument;
+
+/**
+ * Calculates minhash values of append-only texts incrementally. The minimum
+ * values of a text up to its last whitespace are kept in the document with
+ * the offset of the whitespace, and an updated text only hashes characters
+ * after the offset. The result is the same as a calculation of the whole
+ * text as long as no token spans whitespace.
+ *
+ * A digest of the offset, the last {@link #DIGEST_LENGTH} characters before
+ * the offset and the analysis settings is also kept, so the cost of an update
+ * does not depend on the length of the text. The whole text is calculated if
+ * the digest does not match, such as when the end of the text before the
+ * offset or the settings of the processor are changed. An edit of the text
+ * further before the offset which keeps its length is not detected.
+ */
+final class IncrementalCalculator {
+
+    static final String OFFSET = "offset";
+
+    static final String VALUES = "values";
+
+    static final String DIGEST = "digest";
+
+    /** the number of characters before the offset in the digest */
+    static final int DIGEST_LENGTH = 64;
+
+    private final TokenChain tokenChain;
+
+    private final MinHashTokenFilterFactory minHashFilter;
+
+    /** a hash of the analysis settings, the seed of digests */
+    private final long fingerprint;
+
+    private IncrementalCalculator(final AnalyzerComponents components,
+            final MinHashTokenFilterFactory minHashFilter) {
+        // tokens before the minhash filter
+        this.tokenChain = new TokenChain(components,
+                components.getTokenFilters().length - 1);
+        this.minHashFilter = minHashFilter;
+        this.fingerprint = fingerprint(components, minHashFilter);
+    }
+
+    /**
+     * Creates a calculator for analyzer components ending with a minhash
+     * filter whose minimum values can be merged.
+     */
+    static IncrementalCalculator create(final AnalyzerComponents components) {
+        final TokenFilterFactory[] tokenFilters = components
+                .getTokenFilters();
+        if (tokenFilters.length == 0 || !(tokenFilters[tokenFilters.length
+                - 1] instanceof MinHashTokenFilterFactory)) {
+            throw new IllegalArgumentException(
+                    "requires an analyzer ending with a minhash filter");
+        }
+        final MinHashTokenFilterFactory minHashFilter = (MinHashTokenFilterFactory) tokenFilters[tokenFilters.length
+                - 1];
+        if (!minHashFilter.newAccumulator().supportsMerge()) {
+            throw new IllegalArgumentException(
+                    "requires a minhash filter whose minimum values can be merged,"
+                            + " such as the set mode without shingles");
+        }
+        return new IncrementalCalculator(components, minHashFilter);
+    }
+
+    /**
+     * Calculates the minhash value of the text with the minimum values kept
+     * in the state field, and updates the state field.
+     */
+    byte[] calculate(final IngestDocument document, final String stateField,
+            final String text) throws IOException {
+        final MinHashAccumulator accumulator = minHashFilter.newAccumulator();
+        int offset = 0;
+        final Number previousOffset = document.getFieldValue(
+                stateField + "." + OFFSET, Number.class, true);
+        final String previousValues = document
+                .getFieldValue(stateField + "." + VALUES, String.class, true);
+        final String previousDigest = document
+                .getFieldValue(stateField + "." + DIGEST, String.class, true);
+        if (previousOffset != null && previousValues != null
+                && previousOffset.intValue() <= text.length()
+                && digest(text, previousOffset.intValue(), fingerprint)
+                        .equals(previousDigest)) {
+            final long[] values = decode(previousValues);
+            if (values.length == accumulator.values().length) {
+                accumulator.merge(values);
+                offset = previousOffset.intValue();
+            }
+        }
+
+        // the new state ends at the last whitespace
+        int end = text.length();
+        while (end > offset && !Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        accumulate(text.substring(offset, end), accumulator);
+        document.setFieldValue(stateField + "." + OFFSET, end);
+        document.setFieldValue(stateField + "." + VALUES,
+                encode(accumulator.values()));
+        document.setFieldValue(stateField + "." + DIGEST,
+                digest(text, end, fingerprint));
+
+        accumulate(text.substring(end), accumulator);
+        return accumulator.toSignature();
+    }
+
+    private void accumulate(final String text,
+            final MinHashAccumulator accumulator) throws IOException {
+        if (text.isEmpty()) {
+            return;
+        }
+        try (TokenStream stream = tokenChain.tokenStream(text)) {
+            final CharTermAttribute termAtt = stream
+                    .addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                accumulator.add(termAtt);
+            }
+            stream.end();
+        }
+    }
+
+    /**
+     * Returns a 128-bit hash of the offset and the last
+     * {@link #DIGEST_LENGTH} characters before the offset.
+     */
+    static String digest(final String text, final int offset,
+            final long fingerprint) {
+        final int start = Math.max(0, offset - DIGEST_LENGTH);
+        final ByteBuffer buffer = ByteBuffer
+                .allocate(4 + (offset - start) * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(offset);
+        for (int i = start; i < offset; i++) {
+            buffer.putChar(text.charAt(i));
+        }
+        final MurmurHash3.Hash128 hash = MurmurHash3.hash128(buffer.array(),
+                0, buffer.position(), fingerprint,
+                new MurmurHash3.Hash128());
+        return encode(new long[] { hash.h1, hash.h2 });
+    }
+
+    /**
+     * Returns a hash of the names of the analysis components and the settings
+     * of the minhash filter, which change minimum values of the same text.
+     */
+    static long fingerprint(final AnalyzerComponents components,
+            final MinHashTokenFilterFactory minHashFilter) {
+        final StringBuilder buf = new StringBuilder();
+        for (final CharFilterFactory charFilter : components
+                .getCharFilters()) {
+            buf.append(charFilter.name()).append(',');
+        }
+        buf.append(components.getTokenizerFactory().name()).append(',');
+        for (final TokenFilterFactory tokenFilter : components
+                .getTokenFilters()) {
+            buf.append(tokenFilter.name()).append(',');
+        }
+        buf.append(minHashFilter.hashStrategy()).append(',')
+                .append(minHashFilter.mode()).append(',')
+                .append(minHashFilter.seed()).append(',')
+                .append(minHashFilter.hashBit()).append(',')
+                .append(minHashFilter.numOfHash()).append(',')
+                .append(minHashFilter.shingleSize());
+        final byte[] bytes = buf.toString().getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, 0,
+                new MurmurHash3.Hash128()).h1;
+    }
+
+    static String encode(final long[] values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put(values);
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    static long[] decode(final String value) {
+        final byte[] bytes = Base64.getDecoder().decode(value);
+        final long[] values = new long[bytes.length / 8];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer()
+                .get(values);
+        return values;
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.ingest;
+
+import static org.elasticsearch.ingest.ConfigurationUtils.newConfigurationException;
+import static org.elasticsearch.ingest.ConfigurationUtils.readBooleanProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readIntProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readList;
+import static org.elasticsearch.ingest.ConfigurationUtils.readObject;
+import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalList;
+import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalStringProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.codelibs.elasticsearch.minhash.index.query.MinHashSimilarityQueryBuilder;
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.index.analysis.AnalyzerComponents;
+import org.elasticsearch.index.analysis.AnalyzerComponentsProvider;
+import org.elasticsearch.index.analysis.NameOrDefinition;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+/**
+ * Calculates a minhash value of a text field on an ingest node, and sets it
+ * to the target field. The analyzer is defined in the processor as in the
+ * analyze API, so no index is needed. The target field is a minhash field
+ * with {@code precomputed}, so data nodes only store the value. Only the
+ * components of the analyzer are kept, and token streams are reused by
+ * {@link TokenChain}, so a replaced processor leaves no analyzer to close.
+ *
+ * With {@code duplicate}, the processor also looks for a document with a
+ * similar minhash value in the target index, and tags or drops the document
+ * if it is found. The index lookup is a search request per document. A
+ * minhash field decodes a queried value in either form, so the lookup does
+ * not depend on {@code bit_string} of the field. With {@code tag}, values of
+ * recent documents are looked up first, and {@code duplicate_lookup} turns
+ * the index lookup off. A value is kept when the processor passes the
+ * document, so a document which is dropped or fails later may still be
+ * referred to; {@code drop} does not use recent values for that reason. A
+ * document without an id is kept in the recent values with a generated id,
+ * which is set to the document so that a later duplicate refers to it.
+ *
+ * With {@code state_field}, minimum values of the text are kept in the
+ * document, and an appended text is calculated incrementally.
+ */
+public final class MinHashProcessor extends AbstractProcessor {
+
+    public static final String TYPE = "minhash";
+
+    /** The maximum number of recent values, which are scanned per document. */
+    static final int MAX_DUPLICATE_WINDOW = 10000;
+
+    /**
+     * What to do with a near-duplicate document.
+     */
+    public enum DuplicateAction {
+        /** Does not look for duplicates. */
+        NONE,
+        /** Sets the id of the duplicated document. */
+        TAG,
+        /** Drops the document. */
+        DROP;
+
+        public static DuplicateAction of(final String value) {
+            try {
+                return valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (final IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Unknown [duplicate]: " + value, e);
+            }
+        }
+    }
+
+    private final String field;
+
+    private final String targetField;
+
+    private final TokenChain tokenChain;
+
+    private final boolean bitString;
+
+    private final boolean ignoreMissing;
+
+    private final DuplicateAction duplicateAction;
+
+    private final String duplicateField;
+
+    private final float duplicateMinSimilarity;
+
+    private final boolean duplicateLookup;
+
+    private final RecentSignatures recentSignatures;
+
+    private final Client client;
+
+    private final String stateField;
+
+    private final IncrementalCalculator incrementalCalculator;
+
+    MinHashProcessor(final String tag, final String description,
+            final String field, final String targetField,
+            final TokenChain tokenChain, final boolean bitString,
+            final boolean ignoreMissing,
+            final DuplicateAction duplicateAction,
+            final String duplicateField, final float duplicateMinSimilarity,
+            final boolean duplicateLookup, final int duplicateWindow,
+            final Client client, final String stateField,
+            final IncrementalCalculator incrementalCalculator) {
+        super(tag, description);
+        this.field = field;
+        this.targetField = targetField;
+        this.tokenChain = tokenChain;
+        this.bitString = bitString;
+        this.ignoreMissing = ignoreMissing;
+        this.duplicateAction = duplicateAction;
+        this.duplicateField = duplicateField;
+        this.duplicateMinSimilarity = duplicateMinSimilarity;
+        this.duplicateLookup = duplicateLookup;
+        this.recentSignatures = duplicateAction == DuplicateAction.TAG
+                ? new RecentSignatures(duplicateWindow)
+                : null;
+        this.client = client;
+        this.stateField = stateField;
+        this.incrementalCalculator = incrementalCalculator;
+    }
+
+    @Override
+    public IngestDocument execute(final IngestDocument document)
+            throws Exception {
+        if (isAsync()) {
+            throw new UnsupportedOperationException(
+                    "this processor looks for duplicates asynchronously");
+        }
+        calculate(document);
+        return document;
+    }
+
+    @Override
+    public void execute(final IngestDocument document,
+            final BiConsumer<IngestDocument, Exception> handler) {
+        final byte[] value;
+        try {
+            value = calculate(document);
+        } catch (final Exception e) {
+            handler.accept(null, e);
+            return;
+        }
+        if (value == null || duplicateAction == DuplicateAction.NONE) {
+            handler.accept(document, null);
+            return;
+        }
+
+        final String index = document.getMetadata().getIndex();
+        final String id = document.getMetadata().getId();
+        final String recentId = recentSignatures != null
+                ? recentSignatures.find(index, value, duplicateMinSimilarity,
+                        id)
+                : null;
+        if (recentId != null || !duplicateLookup) {
+            onDuplicate(document, value, id, recentId, handler);
+            return;
+        }
+        client.search(duplicateRequest(index, value, id),
+                ActionListener.wrap(response -> {
+                    final SearchHit[] hits = response.getHits().getHits();
+                    onDuplicate(document, value, id,
+                            hits.length > 0 ? hits[0].getId() : null,
+                            handler);
+                }, e -> handler.accept(null, e)));
+    }
+
+    @Override
+    public boolean isAsync() {
+        return duplicateAction != DuplicateAction.NONE;
+    }
+
+    /**
+     * Sets the minhash value of the text to the target field.
+     *
+     * @return the minhash value, or null if it is not calculated
+     */
+    private byte[] calculate(final IngestDocument document)
+            throws Exception {
+        final String text = document.getFieldValue(field, String.class,
+                ignoreMissing);
+        if (text == null) {
+            if (ignoreMissing) {
+                return null;
+            }
+            throw new IllegalArgumentException("field [" + field
+                    + "] is null, cannot calculate a minhash value");
+        }
+        final byte[] value = incrementalCalculator != null
+                ? incrementalCalculator.calculate(document, stateField, text)
+                : calculateValue(text);
+        if (value != null) {
+            document.setFieldValue(targetField,
+                    SignatureUtils.encode(value, bitString));
+        }
+        return value;
+    }
+
+    /**
+     * Calculates the minhash value of the text, which is the first token of
+     * the analyzer.
+     */
+    private byte[] calculateValue(final String text) throws IOException {
+        byte[] value = null;
+        try (TokenStream stream = tokenChain.tokenStream(text)) {
+            final CharTermAttribute termAtt = stream
+                    .addAttribute(CharTermAttribute.class);
+            stream.reset();
+            if (stream.incrementToken()) {
+                value = Base64.getDecoder().decode(termAtt.toString());
+            }
+            stream.end();
+        }
+        return value;
+    }
+
+    /**
+     * Creates a request to find a searchable document with a similar
+     * minhash value. Each shard stops at the first match.
+     */
+    private SearchRequest duplicateRequest(final String index,
+            final byte[] value, final String id) {
+        final String encoded = SignatureUtils.encode(value, bitString);
+        final QueryBuilder query = duplicateMinSimilarity >= 1.0f
+                ? QueryBuilders.termQuery(targetField, encoded)
+                : new MinHashSimilarityQueryBuilder(targetField, null,
+                        encoded).minSimilarity(duplicateMinSimilarity);
+        final BoolQueryBuilder boolQuery = QueryBuilders.boolQuery()
+                .filter(query);
+        if (id != null) {
+            boolQuery.mustNot(QueryBuilders.idsQuery().addIds(id));
+        }
+        return new SearchRequest(index)
+                .source(new SearchSourceBuilder().query(boolQuery).size(1)
+                        .fetchSource(false).trackTotalHits(false)
+                        .terminateAfter(1))
+                .indicesOptions(IndicesOptions.lenientExpandOpen());
+    }
+
+    private void onDuplicate(final IngestDocument document,
+            final byte[] value, final String id, final String duplicateOf,
+            final BiConsumer<IngestDocument, Exception> handler) {
+        if (duplicateOf == null) {
+            if (recentSignatures != null) {
+                String key = id;
+                if (key == null) {
+                    key = UUIDs.base64UUID();
+                    document.getMetadata().setId(key);
+                }
+                recentSignatures.add(document.getMetadata().getIndex(), value,
+                        key);
+            }
+            handler.accept(document, null);
+        } else if (duplicateAction == DuplicateAction.DROP) {
+            handler.accept(null, null);
+        } else {
+            document.setFieldValue(duplicateField, duplicateOf);
+            handler.accept(document, null);
+        }
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final AnalysisRegistry analysisRegistry;
+
+        private final Client client;
+
+        public Factory(final AnalysisRegistry analysisRegistry,
+                final Client client) {
+            this.analysisRegistry = analysisRegistry;
+            this.client = client;
+        }
+
+        @Override
+        public MinHashProcessor create(
+                final Map<String, Processor.Factory> registry,
+                final String tag, final String description,
+                final Map<String, Object> config) throws Exception {
+            final String field = readStringProperty(TYPE, tag, config,
+                    "field");
+            final String targetField = readStringProperty(TYPE, tag, config,
+                    "target_field");
+            final NameOrDefinition tokenizer = config.containsKey("tokenizer")
+                    ? nameOrDefinition(
+                            readObject(TYPE, tag, config, "tokenizer"))
+                    : new NameOrDefinition("standard");
+            final List<Object> charFilters = readOptionalList(TYPE, tag,
+                    config, "char_filter");
+            final List<Object> filters = readList(TYPE, tag, config,
+                    "filter");
+            if (filters.isEmpty()) {
+                throw newConfigurationException(TYPE, tag, "filter",
+                        "requires a minhash filter");
+            }
+            final boolean bitString = readBooleanProperty(TYPE, tag, config,
+                    "bit_string", false);
+            final boolean ignoreMissing = readBooleanProperty(TYPE, tag,
+                    config, "ignore_missing", false);
+            final DuplicateAction duplicateAction;
+            try {
+                duplicateAction = DuplicateAction.of(readStringProperty(TYPE,
+                        tag, config, "duplicate", "none"));
+            } catch (final IllegalArgumentException e) {
+                throw newConfigurationException(TYPE, tag, "duplicate", e);
+            }
+            final String duplicateField = readStringProperty(TYPE, tag,
+                    config, "duplicate_field", "duplicate_of");
+            final float duplicateMinSimilarity;
+            try {
+                duplicateMinSimilarity = config
+                        .containsKey("duplicate_min_similarity")
+                                ? Float.parseFloat(readObject(TYPE, tag, config,
+                                        "duplicate_min_similarity").toString())
+                                : 1.0f;
+            } catch (final NumberFormatException e) {
+                throw newConfigurationException(TYPE, tag,
+                        "duplicate_min_similarity", e);
+            }
+            if (duplicateMinSimilarity < 0 || duplicateMinSimilarity > 1) {
+                throw newConfigurationException(TYPE, tag,
+                        "duplicate_min_similarity",
+                        "must be between 0 and 1");
+            }
+            final boolean duplicateLookup = readBooleanProperty(TYPE, tag,
+                    config, "duplicate_lookup", true);
+            final int duplicateWindow = readIntProperty(TYPE, tag, config,
+                    "duplicate_window", 1000);
+            if (duplicateWindow < 0
+                    || duplicateWindow > MAX_DUPLICATE_WINDOW) {
+                throw newConfigurationException(TYPE, tag, "duplicate_window",
+                        "must be between 0 and " + MAX_DUPLICATE_WINDOW);
+            }
+            if (duplicateAction == DuplicateAction.DROP && !duplicateLookup) {
+                throw newConfigurationException(TYPE, tag, "duplicate_lookup",
+                        "must be true with [duplicate] drop");
+            }
+            final String stateField = readOptionalStringProperty(TYPE, tag,
+                    config, "state_field");
+            final AnalyzerComponents components;
+            // only the components are used, so the analyzer is closed
+            try (NamedAnalyzer analyzer = analysisRegistry.buildCustomAnalyzer(
+                    null, false, tokenizer, nameOrDefinitions(charFilters),
+                    nameOrDefinitions(filters))) {
+                components = components(analyzer);
+            } catch (final IllegalArgumentException e) {
+                throw newConfigurationException(TYPE, tag, "filter", e);
+            }
+            IncrementalCalculator incrementalCalculator = null;
+            if (stateField != null) {
+                try {
+                    incrementalCalculator = IncrementalCalculator
+                            .create(components);
+                } catch (final IllegalArgumentException e) {
+                    throw newConfigurationException(TYPE, tag, "state_field",
+                            e);
+                }
+            }
+            return new MinHashProcessor(tag, description, field, targetField,
+                    new TokenChain(components,
+                            components.getTokenFilters().length),
+                    bitString, ignoreMissing, duplicateAction,
+                    duplicateField, duplicateMinSimilarity, duplicateLookup,
+                    duplicateWindow, client, stateField,
+                    incrementalCalculator);
+        }
+
+        private static AnalyzerComponents components(
+                final NamedAnalyzer analyzer) {
+            if (!(analyzer.analyzer() instanceof AnalyzerComponentsProvider)) {
+                throw new IllegalArgumentException(
+                        "requires an analyzer ending with a minhash filter");
+            }
+            return ((AnalyzerComponentsProvider) analyzer.analyzer())
+                    .getComponents();
+        }
+
+        private static List<NameOrDefinition> nameOrDefinitions(
+                final List<Object> values) {
+            final List<NameOrDefinition> list = new ArrayList<>();
+            if (values != null) {
+                for (final Object value : values) {
+                    list.add(nameOrDefinition(value));
+                }
+            }
+            return list;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static NameOrDefinition nameOrDefinition(final Object value) {
+            if (value instanceof Map) {
+                return new NameOrDefinition((Map<String, ?>) value);
+            }
+            return new NameOrDefinition(value.toString());
+        }
+    }
+}
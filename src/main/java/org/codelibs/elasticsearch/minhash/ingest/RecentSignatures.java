@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.ingest;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+
+/**
+ * Keeps minhash values of recently processed documents, to find duplicates
+ * which are not searchable yet, such as documents in the same bulk request.
+ * The oldest value is removed when the window is full. A value is kept with
+ * its index, and only matches documents of the same index.
+ */
+final class RecentSignatures {
+
+    private final int size;
+
+    private final ArrayDeque<Entry> entries;
+
+    RecentSignatures(final int size) {
+        this.size = size;
+        entries = new ArrayDeque<>(size);
+    }
+
+    /**
+     * Returns the id of the most recent document in the index whose minhash
+     * value is similar to the value, or null if no other document is similar.
+     */
+    synchronized String find(final String index, final byte[] value,
+            final float minSimilarity, final String id) {
+        final long[] words = toWords(value);
+        final int maxDifferentBits = SignatureUtils
+                .maxDifferentBits(value.length * 8, minSimilarity);
+        final Iterator<Entry> iterator = entries.descendingIterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.numBytes == value.length && entry.index.equals(index)
+                    && !entry.id.equals(id)
+                    && SignatureUtils.countDifferentBits(words, entry.words,
+                            words.length,
+                            maxDifferentBits) <= maxDifferentBits) {
+                return entry.id;
+            }
+        }
+        return null;
+    }
+
+    synchronized void add(final String index, final byte[] value,
+            final String id) {
+        if (size == 0) {
+            return;
+        }
+        if (entries.size() >= size) {
+            entries.removeFirst();
+        }
+        entries.addLast(new Entry(index, toWords(value), value.length, id));
+    }
+
+    private static long[] toWords(final byte[] value) {
+        final long[] words = new long[SignatureUtils.numWords(value.length)];
+        SignatureUtils.toWords(value, value.length, words);
+        return words;
+    }
+
+    private static final class Entry {
+
+        final String index;
+
+        final long[] words;
+
+        final int numBytes;
+
+        final String id;
+
+        Entry(final String index, final long[] words, final int numBytes,
+                final String id) {
+            this.index = index;
+            this.words = words;
+            this.numBytes = numBytes;
+            this.id = id;
+        }
+    }
+}
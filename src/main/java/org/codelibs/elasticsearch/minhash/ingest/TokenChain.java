@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.ingest;
+
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.elasticsearch.index.analysis.AnalyzerComponents;
+import org.elasticsearch.index.analysis.CharFilterFactory;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+
+/**
+ * Creates token streams from analyzer components, and reuses the tokenizer
+ * and token filters on each thread as {@code Analyzer} does. A thread keeps
+ * the tokenizers and filters of the last {@link #SIZE} chains it used, so
+ * those of replaced processors are dropped without an analyzer to close.
+ *
+ * A token stream needs to be closed before the next text of the thread.
+ */
+final class TokenChain {
+
+    static final int SIZE = 4;
+
+    private static final ThreadLocal<Components[]> COMPONENTS = ThreadLocal
+            .withInitial(() -> new Components[SIZE]);
+
+    private final AnalyzerComponents components;
+
+    private final int numFilters;
+
+    /**
+     * @param numFilters the number of token filters to apply, from the first
+     */
+    TokenChain(final AnalyzerComponents components, final int numFilters) {
+        this.components = components;
+        this.numFilters = numFilters;
+    }
+
+    TokenStream tokenStream(final String text) {
+        Reader reader = new StringReader(text);
+        for (final CharFilterFactory charFilter : components
+                .getCharFilters()) {
+            reader = charFilter.create(reader);
+        }
+        final Components reused = components();
+        reused.source.setReader(reader);
+        return reused.sink;
+    }
+
+    private Components components() {
+        final Components[] cache = COMPONENTS.get();
+        for (int i = 0; i < cache.length; i++) {
+            final Components reused = cache[i];
+            if (reused != null && reused.owner == this) {
+                // the most recent chain first
+                System.arraycopy(cache, 0, cache, 1, i);
+                cache[0] = reused;
+                return reused;
+            }
+        }
+        final Tokenizer source = components.getTokenizerFactory().create();
+        TokenStream sink = source;
+        final TokenFilterFactory[] tokenFilters = components
+                .getTokenFilters();
+        for (int i = 0; i < numFilters; i++) {
+            sink = tokenFilters[i].create(sink);
+        }
+        final Components created = new Components(this, source, sink);
+        System.arraycopy(cache, 0, cache, 1, cache.length - 1);
+        cache[0] = created;
+        return created;
+    }
+
+    private static final class Components {
+
+        final TokenChain owner;
+
+        final Tokenizer source;
+
+        final TokenStream sink;
+
+        Components(final TokenChain owner, final Tokenizer source,
+                final TokenStream sink) {
+            this.owner = owner;
+            this.source = source;
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.rest;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codelibs.elasticsearch.minhash.action.MinHashComputeAction;
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+import org.elasticsearch.xcontent.XContentParser;
+
+/**
+ * <pre>
+ * POST /my_index/_minhash/compute
+ * {
+ *   "field": "minhash_value",
+ *   "texts": ["text1", "text2"]
+ * }
+ * </pre>
+ */
+public class RestMinHashComputeAction extends BaseRestHandler {
+
+    @Override
+    public String getName() {
+        return "minhash_compute_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/_minhash/compute"),
+                new Route(POST, "/_minhash/compute"),
+                new Route(GET, "/{index}/_minhash/compute"),
+                new Route(POST, "/{index}/_minhash/compute"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request,
+            final NodeClient client) throws IOException {
+        final MinHashComputeAction.Request computeRequest = new MinHashComputeAction.Request(
+                request.param("index"));
+        try (XContentParser parser = request.contentOrSourceParamParser()) {
+            parse(computeRequest, parser);
+        }
+        return channel -> client.execute(MinHashComputeAction.INSTANCE,
+                computeRequest, new RestToXContentListener<>(channel));
+    }
+
+    static void parse(final MinHashComputeAction.Request request,
+            final XContentParser parser) throws IOException {
+        if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+            throw new IllegalArgumentException(
+                    "Malformed content, must start with an object");
+        }
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if ("index".equals(currentFieldName)
+                    && token == XContentParser.Token.VALUE_STRING) {
+                request.index(parser.text());
+            } else if ("analyzer".equals(currentFieldName)
+                    && token == XContentParser.Token.VALUE_STRING) {
+                request.analyzer(parser.text());
+            } else if ("field".equals(currentFieldName)
+                    && token == XContentParser.Token.VALUE_STRING) {
+                request.field(parser.text());
+            } else if ("texts".equals(currentFieldName)
+                    && token == XContentParser.Token.START_ARRAY) {
+                final List<String> texts = new ArrayList<>();
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    if (!parser.currentToken().isValue()) {
+                        throw new IllegalArgumentException(
+                                "[texts] must be an array of strings");
+                    }
+                    texts.add(parser.text());
+                }
+                request.texts(texts);
+            } else {
+                throw new IllegalArgumentException("Unknown parameter ["
+                        + currentFieldName
+                        + "] in request body or parameter is of the wrong type["
+                        + token + "]");
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.rest;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codelibs.elasticsearch.minhash.action.MinHashJoinAction;
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestCancellableNodeClient;
+import org.elasticsearch.rest.action.RestToXContentListener;
+import org.elasticsearch.xcontent.XContentParser;
+
+/**
+ * <pre>
+ * POST /my_index/_minhash/join
+ * {
+ *   "field": "minhash_value",
+ *   "min_similarity": 0.9
+ * }
+ * </pre>
+ */
+public class RestMinHashJoinAction extends BaseRestHandler {
+
+    @Override
+    public String getName() {
+        return "minhash_join_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/{index}/_minhash/join"),
+                new Route(POST, "/{index}/_minhash/join"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request,
+            final NodeClient client) throws IOException {
+        final MinHashJoinAction.Request joinRequest = new MinHashJoinAction.Request(
+                request.param("index"));
+        if (request.hasContentOrSourceParam()) {
+            try (XContentParser parser = request
+                    .contentOrSourceParamParser()) {
+                parse(joinRequest, parser);
+            }
+        }
+        if (request.hasParam("field")) {
+            joinRequest.field(request.param("field"));
+        }
+        return channel -> new RestCancellableNodeClient(client,
+                request.getHttpChannel()).execute(MinHashJoinAction.INSTANCE,
+                        joinRequest, new RestToXContentListener<>(channel));
+    }
+
+    static void parse(final MinHashJoinAction.Request request,
+            final XContentParser parser) throws IOException {
+        if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+            throw new IllegalArgumentException(
+                    "Malformed content, must start with an object");
+        }
+        int bands = request.bands();
+        int rows = request.rows();
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if ("field".equals(currentFieldName)
+                    && token == XContentParser.Token.VALUE_STRING) {
+                request.field(parser.text());
+            } else if ("min_similarity".equals(currentFieldName)
+                    && token == XContentParser.Token.VALUE_NUMBER) {
+                request.minSimilarity(parser.floatValue());
+            } else if ("bands".equals(currentFieldName)
+                    && token == XContentParser.Token.VALUE_NUMBER) {
+                bands = parser.intValue();
+            } else if ("rows".equals(currentFieldName)
+                    && token == XContentParser.Token.VALUE_NUMBER) {
+                rows = parser.intValue();
+            } else if ("max_pairs".equals(currentFieldName)
+                    && token == XContentParser.Token.VALUE_NUMBER) {
+                request.maxPairs(parser.intValue());
+            } else {
+                throw new IllegalArgumentException("Unknown parameter ["
+                        + currentFieldName
+                        + "] in request body or parameter is of the wrong type["
+                        + token + "]");
+            }
+        }
+        request.lsh(bands, rows);
+    }
+}
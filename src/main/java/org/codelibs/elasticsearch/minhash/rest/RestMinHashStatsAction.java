@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.rest;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codelibs.elasticsearch.minhash.action.MinHashStatsAction;
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions.NodesResponseRestListener;
+
+/**
+ * <pre>
+ * GET /_nodes/minhash/stats
+ * GET /_nodes/{nodeId}/minhash/stats?index=my_index
+ * </pre>
+ */
+public class RestMinHashStatsAction extends BaseRestHandler {
+
+    @Override
+    public String getName() {
+        return "minhash_stats_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/_nodes/minhash/stats"),
+                new Route(GET, "/_nodes/{nodeId}/minhash/stats"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request,
+            final NodeClient client) throws IOException {
+        final MinHashStatsAction.Request statsRequest = new MinHashStatsAction.Request(
+                Strings.splitStringByCommaToArray(request.param("nodeId")))
+                        .indices(Strings.splitStringByCommaToArray(
+                                request.param("index")));
+        return channel -> client.execute(MinHashStatsAction.INSTANCE,
+                statsRequest, new NodesResponseRestListener<>(channel));
+    }
+}
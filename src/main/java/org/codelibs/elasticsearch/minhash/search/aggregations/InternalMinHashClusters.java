@@ -0,0 +1,303 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.search.aggregations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.search.aggregations.AggregationReduceContext;
+import org.elasticsearch.search.aggregations.AggregatorReducer;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.support.SamplingContext;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Result of {@link MinHashClustersAggregationBuilder}.
+ */
+public class InternalMinHashClusters extends InternalAggregation {
+
+    /**
+     * Orders clusters by the number of documents in descending order.
+     */
+    static final Comparator<Cluster> ORDER = Comparator
+            .comparingLong(Cluster::getDocCount).reversed()
+            .thenComparing(Cluster::getSignature, Arrays::compareUnsigned);
+
+    public static class Cluster implements Writeable {
+
+        private final byte[] signature;
+
+        private final long docCount;
+
+        public Cluster(final byte[] signature, final long docCount) {
+            this.signature = signature;
+            this.docCount = docCount;
+        }
+
+        public Cluster(final StreamInput in) throws IOException {
+            signature = in.readByteArray();
+            docCount = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            out.writeByteArray(signature);
+            out.writeVLong(docCount);
+        }
+
+        /**
+         * Returns the minhash value of the representative document.
+         */
+        public byte[] getSignature() {
+            return signature;
+        }
+
+        public long getDocCount() {
+            return docCount;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Cluster other = (Cluster) obj;
+            return docCount == other.docCount
+                    && Arrays.equals(signature, other.signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(Arrays.hashCode(signature), docCount);
+        }
+    }
+
+    private final int bands;
+
+    private final int rows;
+
+    private final int size;
+
+    private final long minDocCount;
+
+    private final boolean bitString;
+
+    private final List<Cluster> clusters;
+
+    public InternalMinHashClusters(final String name, final int bands,
+            final int rows, final int size, final long minDocCount,
+            final boolean bitString, final List<Cluster> clusters,
+            final Map<String, Object> metadata) {
+        super(name, metadata);
+        this.bands = bands;
+        this.rows = rows;
+        this.size = size;
+        this.minDocCount = minDocCount;
+        this.bitString = bitString;
+        this.clusters = clusters;
+    }
+
+    public InternalMinHashClusters(final StreamInput in) throws IOException {
+        super(in);
+        bands = in.readVInt();
+        rows = in.readVInt();
+        size = in.readVInt();
+        minDocCount = in.readVLong();
+        bitString = in.readBoolean();
+        clusters = in.readCollectionAsList(Cluster::new);
+    }
+
+    @Override
+    protected void doWriteTo(final StreamOutput out) throws IOException {
+        out.writeVInt(bands);
+        out.writeVInt(rows);
+        out.writeVInt(size);
+        out.writeVLong(minDocCount);
+        out.writeBoolean(bitString);
+        out.writeCollection(clusters);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return MinHashClustersAggregationBuilder.NAME;
+    }
+
+    public List<Cluster> getClusters() {
+        return clusters;
+    }
+
+    @Override
+    protected AggregatorReducer getLeaderReducer(
+            final AggregationReduceContext reduceContext, final int size) {
+        return new AggregatorReducer() {
+            private final List<Cluster> all = new ArrayList<>();
+
+            @Override
+            public void accept(final InternalAggregation aggregation) {
+                all.addAll(((InternalMinHashClusters) aggregation).clusters);
+            }
+
+            @Override
+            public InternalAggregation get() {
+                return new InternalMinHashClusters(name, bands, rows,
+                        InternalMinHashClusters.this.size, minDocCount,
+                        bitString, merge(all, reduceContext.isFinalReduce()),
+                        getMetadata());
+            }
+        };
+    }
+
+    /**
+     * Merges clusters whose representatives collide on any band. The
+     * representative of the largest cluster is kept.
+     */
+    private List<Cluster> merge(final List<Cluster> all,
+            final boolean finalReduce) {
+        final int numClusters = all.size();
+        final int[] parents = new int[numClusters];
+        final Map<Long, Integer> owners = new HashMap<>();
+        for (int i = 0; i < numClusters; i++) {
+            parents[i] = i;
+            final byte[] signature = all.get(i).getSignature();
+            final long[] words = new long[SignatureUtils
+                    .numWords(signature.length)];
+            SignatureUtils.toWords(signature, signature.length, words);
+            final int numBands = MinHashClustersAggregator
+                    .numBands(signature.length, bands, rows);
+            for (int band = 0; band < numBands; band++) {
+                // values of another size are never similar
+                final long key = SignatureUtils.mix(
+                        SignatureUtils.bandHash(words, band, rows)
+                                ^ signature.length);
+                final Integer owner = owners.putIfAbsent(key, i);
+                if (owner != null) {
+                    final int root1 = find(parents, i);
+                    final int root2 = find(parents, owner);
+                    parents[Math.max(root1, root2)] = Math.min(root1, root2);
+                }
+            }
+        }
+
+        final long[] docCounts = new long[numClusters];
+        final int[] representatives = new int[numClusters];
+        Arrays.fill(representatives, -1);
+        for (int i = 0; i < numClusters; i++) {
+            final int root = find(parents, i);
+            docCounts[root] += all.get(i).getDocCount();
+            if (representatives[root] < 0 || all.get(representatives[root])
+                    .getDocCount() < all.get(i).getDocCount()) {
+                representatives[root] = i;
+            }
+        }
+        final List<Cluster> merged = new ArrayList<>();
+        for (int i = 0; i < numClusters; i++) {
+            if (representatives[i] >= 0
+                    && (!finalReduce || docCounts[i] >= minDocCount)) {
+                merged.add(new Cluster(
+                        all.get(representatives[i]).getSignature(),
+                        docCounts[i]));
+            }
+        }
+        merged.sort(ORDER);
+        if (finalReduce && merged.size() > size) {
+            return new ArrayList<>(merged.subList(0, size));
+        }
+        return merged;
+    }
+
+    private static int find(final int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    @Override
+    protected boolean mustReduceOnSingleInternalAgg() {
+        return true;
+    }
+
+    @Override
+    public InternalAggregation finalizeSampling(
+            final SamplingContext samplingContext) {
+        final List<Cluster> scaled = new ArrayList<>(clusters.size());
+        for (final Cluster cluster : clusters) {
+            scaled.add(new Cluster(cluster.getSignature(),
+                    samplingContext.scaleUp(cluster.getDocCount())));
+        }
+        return new InternalMinHashClusters(name, bands, rows, size,
+                minDocCount, bitString, scaled, getMetadata());
+    }
+
+    @Override
+    public Object getProperty(final List<String> path) {
+        if (path.isEmpty()) {
+            return this;
+        }
+        throw new IllegalArgumentException(
+                "path not supported for [" + getName() + "]: " + path);
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(final XContentBuilder builder,
+            final Params params) throws IOException {
+        builder.startArray("buckets");
+        for (final Cluster cluster : clusters) {
+            builder.startObject();
+            builder.field("key",
+                    SignatureUtils.encode(cluster.getSignature(), bitString));
+            builder.field("doc_count", cluster.getDocCount());
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        final InternalMinHashClusters other = (InternalMinHashClusters) obj;
+        return bands == other.bands && rows == other.rows
+                && size == other.size && minDocCount == other.minDocCount
+                && bitString == other.bitString
+                && clusters.equals(other.clusters);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), bands, rows, size, minDocCount,
+                bitString, clusters);
+    }
+}
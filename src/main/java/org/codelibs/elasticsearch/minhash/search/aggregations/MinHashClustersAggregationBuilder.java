@@ -0,0 +1,383 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.search.aggregations;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.TransportVersions;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationInitializationException;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+/**
+ * An aggregation that groups documents whose minhash values collide on any
+ * LSH band, and returns the largest clusters with their representatives.
+ *
+ * <pre>
+ * "minhash_clusters": {
+ *   "field": "minhash_value",
+ *   "bands": 16,
+ *   "rows": 8,
+ *   "size": 10,
+ *   "min_doc_count": 2
+ * }
+ * </pre>
+ *
+ * Each shard clusters its documents and returns the top {@code shard_size}
+ * clusters, and then the coordinating node merges clusters whose
+ * representatives collide. As with the terms aggregation, the result is
+ * approximate when a shard has more clusters than {@code shard_size}.
+ */
+public class MinHashClustersAggregationBuilder
+        extends AbstractAggregationBuilder<MinHashClustersAggregationBuilder> {
+
+    public static final String NAME = "minhash_clusters";
+
+    public static final ParseField FIELD_FIELD = new ParseField("field");
+
+    public static final ParseField BANDS_FIELD = new ParseField("bands");
+
+    public static final ParseField ROWS_FIELD = new ParseField("rows");
+
+    public static final ParseField SIZE_FIELD = new ParseField("size");
+
+    public static final ParseField SHARD_SIZE_FIELD = new ParseField(
+            "shard_size");
+
+    public static final ParseField MIN_DOC_COUNT_FIELD = new ParseField(
+            "min_doc_count");
+
+    public static final int DEFAULT_SIZE = 10;
+
+    public static final long DEFAULT_MIN_DOC_COUNT = 2;
+
+    private final String fieldName;
+
+    private int bands = 0;
+
+    private int rows = 0;
+
+    private int size = DEFAULT_SIZE;
+
+    private int shardSize = -1;
+
+    private long minDocCount = DEFAULT_MIN_DOC_COUNT;
+
+    public MinHashClustersAggregationBuilder(final String name,
+            final String fieldName) {
+        super(name);
+        if (fieldName == null) {
+            throw new IllegalArgumentException(
+                    "[" + NAME + "] requires a field");
+        }
+        this.fieldName = fieldName;
+    }
+
+    protected MinHashClustersAggregationBuilder(
+            final MinHashClustersAggregationBuilder clone,
+            final AggregatorFactories.Builder factoriesBuilder,
+            final Map<String, Object> metadata) {
+        super(clone, factoriesBuilder, metadata);
+        fieldName = clone.fieldName;
+        bands = clone.bands;
+        rows = clone.rows;
+        size = clone.size;
+        shardSize = clone.shardSize;
+        minDocCount = clone.minDocCount;
+    }
+
+    public MinHashClustersAggregationBuilder(final StreamInput in)
+            throws IOException {
+        super(in);
+        fieldName = in.readString();
+        bands = in.readVInt();
+        rows = in.readVInt();
+        size = in.readVInt();
+        shardSize = in.readInt();
+        minDocCount = in.readVLong();
+    }
+
+    @Override
+    protected void doWriteTo(final StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeVInt(bands);
+        out.writeVInt(rows);
+        out.writeVInt(size);
+        out.writeInt(shardSize);
+        out.writeVLong(minDocCount);
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Sets LSH bands and rows. When they are not set, the ones of the field
+     * mapping are used.
+     */
+    public MinHashClustersAggregationBuilder lsh(final int bands,
+            final int rows) {
+        if (bands <= 0 || bands > 0xffff || rows <= 0) {
+            throw new IllegalArgumentException("[" + NAME
+                    + "] requires [bands] between 1 and 65535 and positive [rows], got "
+                    + bands + " and " + rows);
+        }
+        this.bands = bands;
+        this.rows = rows;
+        return this;
+    }
+
+    public int bands() {
+        return bands;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public MinHashClustersAggregationBuilder size(final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException(
+                    "[" + NAME + "] requires positive [size], got " + size);
+        }
+        this.size = size;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public MinHashClustersAggregationBuilder shardSize(final int shardSize) {
+        if (shardSize <= 0) {
+            throw new IllegalArgumentException("[" + NAME
+                    + "] requires positive [shard_size], got " + shardSize);
+        }
+        this.shardSize = shardSize;
+        return this;
+    }
+
+    /**
+     * Returns the number of clusters returned by each shard, which is ten
+     * times {@link #size()} by default.
+     */
+    public int shardSize() {
+        return shardSize > 0 ? Math.max(shardSize, size) : size * 10;
+    }
+
+    public MinHashClustersAggregationBuilder minDocCount(
+            final long minDocCount) {
+        if (minDocCount < 1) {
+            throw new IllegalArgumentException("[" + NAME
+                    + "] requires [min_doc_count] of at least 1, got "
+                    + minDocCount);
+        }
+        this.minDocCount = minDocCount;
+        return this;
+    }
+
+    public long minDocCount() {
+        return minDocCount;
+    }
+
+    @Override
+    protected XContentBuilder internalXContent(final XContentBuilder builder,
+            final Params params) throws IOException {
+        builder.startObject();
+        builder.field(FIELD_FIELD.getPreferredName(), fieldName);
+        if (bands > 0) {
+            builder.field(BANDS_FIELD.getPreferredName(), bands);
+            builder.field(ROWS_FIELD.getPreferredName(), rows);
+        }
+        builder.field(SIZE_FIELD.getPreferredName(), size);
+        if (shardSize > 0) {
+            builder.field(SHARD_SIZE_FIELD.getPreferredName(), shardSize);
+        }
+        builder.field(MIN_DOC_COUNT_FIELD.getPreferredName(), minDocCount);
+        builder.endObject();
+        return builder;
+    }
+
+    public static MinHashClustersAggregationBuilder parse(
+            final XContentParser parser, final String aggregationName)
+            throws IOException {
+        String fieldName = null;
+        Integer bands = null;
+        Integer rows = null;
+        Integer size = null;
+        Integer shardSize = null;
+        Long minDocCount = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (FIELD_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    fieldName = parser.text();
+                } else if (BANDS_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    bands = parser.intValue();
+                } else if (ROWS_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    rows = parser.intValue();
+                } else if (SIZE_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    size = parser.intValue();
+                } else if (SHARD_SIZE_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    shardSize = parser.intValue();
+                } else if (MIN_DOC_COUNT_FIELD.match(currentFieldName,
+                        parser.getDeprecationHandler())) {
+                    minDocCount = parser.longValue();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] aggregation does not support ["
+                                    + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[" + NAME
+                        + "] unknown token [" + token + "] after ["
+                        + currentFieldName + "]");
+            }
+        }
+
+        try {
+            final MinHashClustersAggregationBuilder builder = new MinHashClustersAggregationBuilder(
+                    aggregationName, fieldName);
+            if (bands != null || rows != null) {
+                builder.lsh(bands == null ? 0 : bands, rows == null ? 0 : rows);
+            }
+            if (size != null) {
+                builder.size(size);
+            }
+            if (shardSize != null) {
+                builder.shardSize(shardSize);
+            }
+            if (minDocCount != null) {
+                builder.minDocCount(minDocCount);
+            }
+            return builder;
+        } catch (final IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(),
+                    e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected AggregatorFactory doBuild(final AggregationContext context,
+            final AggregatorFactory parent,
+            final AggregatorFactories.Builder subFactoriesBuilder)
+            throws IOException {
+        if (parent != null) {
+            throw new AggregationInitializationException("[" + NAME
+                    + "] aggregation cannot be used with a parent aggregation");
+        }
+        if (subFactoriesBuilder.count() > 0) {
+            throw new AggregationInitializationException(
+                    "[" + NAME + "] aggregation cannot have sub-aggregations");
+        }
+        final MappedFieldType fieldType = context.getFieldType(fieldName);
+        if (fieldType != null && !(fieldType instanceof MinHashFieldType)) {
+            throw new IllegalArgumentException("[" + NAME
+                    + "] aggregation requires a minhash field, but ["
+                    + fieldName + "] is of type [" + fieldType.typeName()
+                    + "]");
+        }
+        final MinHashFieldType minHashFieldType = (MinHashFieldType) fieldType;
+        int bands = this.bands;
+        int rows = this.rows;
+        if (minHashFieldType != null) {
+            if (!minHashFieldType.hasDocValues()) {
+                throw new IllegalArgumentException("[" + NAME
+                        + "] aggregation requires doc values on field ["
+                        + fieldName + "]");
+            }
+            if (bands == 0) {
+                if (!minHashFieldType.hasLsh()) {
+                    throw new IllegalArgumentException("[" + NAME
+                            + "] aggregation requires [bands] and [rows] because field ["
+                            + fieldName + "] has no lsh_bands");
+                }
+                bands = minHashFieldType.lshBands();
+                rows = minHashFieldType.lshRows();
+            }
+        }
+        return new MinHashClustersAggregatorFactory(name, context, parent,
+                subFactoriesBuilder, metadata, minHashFieldType, bands, rows,
+                size, shardSize(), minDocCount);
+    }
+
+    @Override
+    protected AggregationBuilder shallowCopy(
+            final AggregatorFactories.Builder factoriesBuilder,
+            final Map<String, Object> metadata) {
+        return new MinHashClustersAggregationBuilder(this, factoriesBuilder,
+                metadata);
+    }
+
+    @Override
+    public BucketCardinality bucketCardinality() {
+        return BucketCardinality.NONE;
+    }
+
+    @Override
+    public String getType() {
+        return NAME;
+    }
+
+    @Override
+    public TransportVersion getMinimalSupportedVersion() {
+        return TransportVersions.ZERO;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), fieldName, bands, rows, size,
+                shardSize, minDocCount);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        final MinHashClustersAggregationBuilder other = (MinHashClustersAggregationBuilder) obj;
+        return Objects.equals(fieldName, other.fieldName)
+                && bands == other.bands && rows == other.rows
+                && size == other.size && shardSize == other.shardSize
+                && minDocCount == other.minDocCount;
+    }
+}
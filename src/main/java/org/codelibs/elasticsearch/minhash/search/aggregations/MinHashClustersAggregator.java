@@ -0,0 +1,261 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.search.aggregations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.minhash.index.fielddata.MinHashSignatureValues;
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.codelibs.elasticsearch.minhash.search.aggregations.InternalMinHashClusters.Cluster;
+import org.codelibs.elasticsearch.minhash.util.SignatureUtils;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.ByteArray;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.common.util.LongHash;
+import org.elasticsearch.core.Releasables;
+import org.elasticsearch.search.aggregations.AggregationExecutionContext;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregator;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+
+/**
+ * Clusters documents of a shard with union-find over LSH band collisions.
+ * Each collected document becomes a node, and a node is merged with the
+ * first node that has the same band. The root of a cluster is its first
+ * document, which is used as the representative.
+ *
+ * An aggregator collects a single bucket. Under a parent that creates
+ * multiple buckets, the factory creates an aggregator per bucket.
+ *
+ * All state is kept in {@link BigArrays}, so it is accounted by the request
+ * circuit breaker.
+ */
+class MinHashClustersAggregator extends MetricsAggregator {
+
+    private final MinHashFieldType fieldType;
+
+    private final int bands;
+
+    private final int rows;
+
+    private final int size;
+
+    private final int shardSize;
+
+    private final long minDocCount;
+
+    private final BigArrays bigArrays;
+
+    private LongHash bandKeys;
+
+    /** the first node of each band key */
+    private LongArray keyOwners;
+
+    /** the parent of each node */
+    private LongArray parents;
+
+    /** the minhash value of each node */
+    private ByteArray signatures;
+
+    private long numNodes;
+
+    private int numBytes = -1;
+
+    MinHashClustersAggregator(final String name,
+            final AggregationContext context, final Aggregator parent,
+            final Map<String, Object> metadata,
+            final MinHashFieldType fieldType, final int bands, final int rows,
+            final int size, final int shardSize, final long minDocCount)
+            throws IOException {
+        super(name, context, parent, metadata);
+        this.fieldType = fieldType;
+        this.bands = bands;
+        this.rows = rows;
+        this.size = size;
+        this.shardSize = shardSize;
+        this.minDocCount = minDocCount;
+        bigArrays = context.bigArrays();
+        if (fieldType != null) {
+            boolean success = false;
+            try {
+                bandKeys = new LongHash(1, bigArrays);
+                keyOwners = bigArrays.newLongArray(1, false);
+                parents = bigArrays.newLongArray(1, false);
+                signatures = bigArrays.newByteArray(1, false);
+                success = true;
+            } finally {
+                if (!success) {
+                    doClose();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected LeafBucketCollector getLeafCollector(
+            final AggregationExecutionContext aggCtx,
+            final LeafBucketCollector sub) throws IOException {
+        if (fieldType == null) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        final MinHashSignatureValues values = MinHashSignatureValues
+                .load(aggCtx.getLeafReaderContext().reader(), fieldType);
+        return new LeafBucketCollector() {
+            @Override
+            public void collect(final int doc, final long owningBucketOrd)
+                    throws IOException {
+                assert owningBucketOrd == 0;
+                if (values.advanceExact(doc)) {
+                    values.decode();
+                    add(values);
+                }
+            }
+        };
+    }
+
+    private void add(final MinHashSignatureValues values) {
+        if (numBytes < 0) {
+            numBytes = values.numBytes();
+        } else if (values.numBytes() != numBytes) {
+            // values of another size are never similar
+            return;
+        }
+        final long node = numNodes++;
+        parents = bigArrays.grow(parents, numNodes);
+        parents.set(node, node);
+        signatures = bigArrays.grow(signatures, numNodes * numBytes);
+        signatures.set(node * numBytes, values.bytes(), 0, numBytes);
+
+        final int numBands = numBands(numBytes, bands, rows);
+        for (int band = 0; band < numBands; band++) {
+            final long id = bandKeys.add(
+                    SignatureUtils.bandHash(values.words(), band, rows));
+            if (id >= 0) {
+                keyOwners = bigArrays.grow(keyOwners, id + 1);
+                keyOwners.set(id, node);
+            } else {
+                union(node, keyOwners.get(-1 - id));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bands which fit in a value of the given size.
+     */
+    static int numBands(final int numBytes, final int bands, final int rows) {
+        return Math.min(bands, numBytes * 8 / rows);
+    }
+
+    private long find(long node) {
+        while (true) {
+            final long parent = parents.get(node);
+            if (parent == node) {
+                return node;
+            }
+            // path halving
+            final long grandParent = parents.get(parent);
+            parents.set(node, grandParent);
+            node = grandParent;
+        }
+    }
+
+    private void union(final long node1, final long node2) {
+        final long root1 = find(node1);
+        final long root2 = find(node2);
+        if (root1 < root2) {
+            parents.set(root2, root1);
+        } else if (root2 < root1) {
+            parents.set(root1, root2);
+        }
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(final long owningBucketOrd)
+            throws IOException {
+        assert owningBucketOrd == 0;
+        if (numNodes == 0) {
+            return buildEmptyAggregation();
+        }
+        final PriorityQueue<Candidate> queue = new PriorityQueue<>(
+                shardSize + 1);
+        try (LongArray counts = bigArrays.newLongArray(numNodes, true)) {
+            for (long node = 0; node < numNodes; node++) {
+                counts.increment(find(node), 1);
+            }
+            for (long node = 0; node < numNodes; node++) {
+                final long count = counts.get(node);
+                if (count > 0) {
+                    queue.add(new Candidate(node, count));
+                    if (queue.size() > shardSize) {
+                        queue.poll();
+                    }
+                }
+            }
+        }
+        final List<Cluster> clusters = new ArrayList<>(queue.size());
+        final BytesRef ref = new BytesRef();
+        for (final Candidate candidate : queue) {
+            signatures.get(candidate.root * numBytes, numBytes, ref);
+            clusters.add(new Cluster(Arrays.copyOfRange(ref.bytes,
+                    ref.offset, ref.offset + ref.length), candidate.docCount));
+        }
+        clusters.sort(InternalMinHashClusters.ORDER);
+        return new InternalMinHashClusters(name, bands, rows, size,
+                minDocCount, fieldType.bitString(), clusters, metadata());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new InternalMinHashClusters(name, bands, rows, size,
+                minDocCount, fieldType != null && fieldType.bitString(),
+                List.of(), metadata());
+    }
+
+    @Override
+    protected void doClose() {
+        Releasables.close(bandKeys, keyOwners, parents, signatures);
+    }
+
+    /**
+     * A cluster root ordered by the number of documents, and then by the
+     * root so the first document wins ties.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+
+        final long root;
+
+        final long docCount;
+
+        Candidate(final long root, final long docCount) {
+            this.root = root;
+            this.docCount = docCount;
+        }
+
+        @Override
+        public int compareTo(final Candidate other) {
+            final int cmp = Long.compare(docCount, other.docCount);
+            return cmp != 0 ? cmp : Long.compare(other.root, root);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.search.aggregations;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.minhash.index.mapper.MinHashFieldMapper.MinHashFieldType;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.CardinalityUpperBound;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+
+class MinHashClustersAggregatorFactory extends AggregatorFactory {
+
+    private final MinHashFieldType fieldType;
+
+    private final int bands;
+
+    private final int rows;
+
+    private final int size;
+
+    private final int shardSize;
+
+    private final long minDocCount;
+
+    MinHashClustersAggregatorFactory(final String name,
+            final AggregationContext context, final AggregatorFactory parent,
+            final AggregatorFactories.Builder subFactoriesBuilder,
+            final Map<String, Object> metadata,
+            final MinHashFieldType fieldType, final int bands, final int rows,
+            final int size, final int shardSize, final long minDocCount)
+            throws IOException {
+        super(name, context, parent, subFactoriesBuilder, metadata);
+        this.fieldType = fieldType;
+        this.bands = bands;
+        this.rows = rows;
+        this.size = size;
+        this.shardSize = shardSize;
+        this.minDocCount = minDocCount;
+    }
+
+    @Override
+    protected Aggregator createInternal(final Aggregator parent,
+            final CardinalityUpperBound cardinality,
+            final Map<String, Object> metadata) throws IOException {
+        if (cardinality != CardinalityUpperBound.ONE) {
+            // clusters are built per parent bucket
+            return asMultiBucketAggregator(this, context, parent);
+        }
+        return new MinHashClustersAggregator(name, context, parent, metadata,
+                fieldType, bands, rows, size, shardSize, minDocCount);
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.stats;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Node-level counters of minhash calculation, kept per index while the index
+ * is allocated on the node.
+ */
+public class MinHashStats {
+
+    /**
+     * Compute time is counted in buckets of powers of two microseconds, so
+     * percentiles are accurate within a factor of two.
+     */
+    static final int NUM_BUCKETS = 32;
+
+    static final double[] PERCENTILES = { 50, 95, 99 };
+
+    private final ConcurrentMap<String, Counters> indices = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the recorder of the index. Counters of the index are created
+     * when the first value is recorded, so an index which is only validated
+     * on the node, such as on a master node, has no counters.
+     */
+    public Recorder recorder(final String index) {
+        return new Recorder(index);
+    }
+
+    /**
+     * Removes counters of a removed index, so a recreated index with the
+     * same name starts with new counters.
+     */
+    public void remove(final String index) {
+        final Counters counters = indices.remove(index);
+        if (counters != null) {
+            counters.removed = true;
+        }
+    }
+
+    /**
+     * Returns snapshots of all indices.
+     */
+    public Map<String, Stats> indexStats() {
+        final Map<String, Stats> stats = new TreeMap<>();
+        indices.forEach((index, counters) -> stats.put(index, counters.stats()));
+        return stats;
+    }
+
+    /**
+     * Returns the sum of all indices.
+     */
+    public Stats total() {
+        final Stats total = new Stats();
+        indices.values().forEach(counters -> total.add(counters.stats()));
+        return total;
+    }
+
+    /**
+     * Records values of an index into the counters of the index.
+     */
+    public class Recorder {
+
+        private final String index;
+
+        private volatile Counters counters;
+
+        Recorder(final String index) {
+            // use MinHashStats#recorder(String)
+            this.index = index;
+        }
+
+        private Counters counters() {
+            Counters current = counters;
+            if (current == null || current.removed) {
+                current = indices.computeIfAbsent(index, k -> new Counters());
+                counters = current;
+            }
+            return current;
+        }
+
+        /**
+         * Records a minhash value calculated for a document.
+         *
+         * @param tookNanos calculation time
+         * @param numBytes the size of the raw minhash value
+         */
+        public void onDocument(final long tookNanos, final int numBytes) {
+            final Counters current = counters();
+            current.docs.inc();
+            current.computeTimeNanos.inc(tookNanos);
+            current.bytesEncoded.inc(numBytes);
+            current.computeTimeBuckets.incrementAndGet(bucket(tookNanos));
+        }
+
+        public void onTokens(final long count) {
+            if (count > 0) {
+                counters().tokens.inc(count);
+            }
+        }
+
+        public void onNullValue() {
+            counters().nullValues.inc();
+        }
+    }
+
+    private static class Counters {
+
+        private final CounterMetric docs = new CounterMetric();
+
+        private final CounterMetric tokens = new CounterMetric();
+
+        private final CounterMetric computeTimeNanos = new CounterMetric();
+
+        private final CounterMetric bytesEncoded = new CounterMetric();
+
+        private final CounterMetric nullValues = new CounterMetric();
+
+        private final AtomicLongArray computeTimeBuckets = new AtomicLongArray(
+                NUM_BUCKETS);
+
+        private volatile boolean removed;
+
+        Stats stats() {
+            final long[] buckets = new long[NUM_BUCKETS];
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                buckets[i] = computeTimeBuckets.get(i);
+            }
+            return new Stats(docs.count(), tokens.count(),
+                    computeTimeNanos.count(), bytesEncoded.count(),
+                    nullValues.count(), buckets);
+        }
+    }
+
+    /**
+     * Returns the bucket of {@code [2^(i-1), 2^i)} microseconds.
+     */
+    static int bucket(final long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    public static class Stats implements Writeable, ToXContentFragment {
+
+        private long docs;
+
+        private long tokens;
+
+        private long computeTimeNanos;
+
+        private long bytesEncoded;
+
+        private long nullValues;
+
+        private final long[] computeTimeBuckets;
+
+        public Stats() {
+            computeTimeBuckets = new long[NUM_BUCKETS];
+        }
+
+        Stats(final long docs, final long tokens, final long computeTimeNanos,
+                final long bytesEncoded, final long nullValues,
+                final long[] computeTimeBuckets) {
+            this.docs = docs;
+            this.tokens = tokens;
+            this.computeTimeNanos = computeTimeNanos;
+            this.bytesEncoded = bytesEncoded;
+            this.nullValues = nullValues;
+            this.computeTimeBuckets = computeTimeBuckets;
+        }
+
+        public Stats(final StreamInput in) throws IOException {
+            docs = in.readVLong();
+            tokens = in.readVLong();
+            computeTimeNanos = in.readVLong();
+            bytesEncoded = in.readVLong();
+            nullValues = in.readVLong();
+            computeTimeBuckets = in.readVLongArray();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            out.writeVLong(docs);
+            out.writeVLong(tokens);
+            out.writeVLong(computeTimeNanos);
+            out.writeVLong(bytesEncoded);
+            out.writeVLong(nullValues);
+            out.writeVLongArray(computeTimeBuckets);
+        }
+
+        public void add(final Stats other) {
+            docs += other.docs;
+            tokens += other.tokens;
+            computeTimeNanos += other.computeTimeNanos;
+            bytesEncoded += other.bytesEncoded;
+            nullValues += other.nullValues;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                computeTimeBuckets[i] += other.computeTimeBuckets[i];
+            }
+        }
+
+        public long getDocs() {
+            return docs;
+        }
+
+        public long getTokens() {
+            return tokens;
+        }
+
+        public TimeValue getComputeTime() {
+            return TimeValue.timeValueNanos(computeTimeNanos);
+        }
+
+        public long getBytesEncoded() {
+            return bytesEncoded;
+        }
+
+        public long getNullValues() {
+            return nullValues;
+        }
+
+        /**
+         * Returns the upper bound of the compute time in microseconds at the
+         * given percentile.
+         */
+        public long getComputeTimePercentile(final double percentile) {
+            long total = 0;
+            for (final long count : computeTimeBuckets) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final double rank = total * percentile / 100;
+            long count = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                count += computeTimeBuckets[i];
+                if (count >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (NUM_BUCKETS - 1);
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder,
+                final Params params) throws IOException {
+            builder.field("docs", docs);
+            builder.field("tokens", tokens);
+            builder.humanReadableField("compute_time_in_millis",
+                    "compute_time", getComputeTime());
+            builder.startObject("compute_time_percentiles_in_micros");
+            for (final double percentile : PERCENTILES) {
+                builder.field(String.valueOf(percentile),
+                        getComputeTimePercentile(percentile));
+            }
+            builder.endObject();
+            builder.humanReadableField("bytes_encoded_in_bytes",
+                    "bytes_encoded", ByteSizeValue.ofBytes(bytesEncoded));
+            builder.field("null_values", nullValues);
+            return builder;
+        }
+    }
+}
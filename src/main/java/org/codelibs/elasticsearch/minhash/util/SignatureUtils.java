@@ -0,0 +1,471 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.util;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.apache.lucene.util.BitUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Helpers for handling b-bit minhash signatures.
+ *
+ * Bit {@code i} of a signature is bit {@code i % 8} of byte {@code i / 8}.
+ */
+public final class SignatureUtils {
+
+    private static final char[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        for (int i = 0; i < BASE64_CHARS.length; i++) {
+            BASE64_VALUES[BASE64_CHARS[i]] = (byte) i;
+        }
+    }
+
+    private SignatureUtils() {
+        // nothing
+    }
+
+    /**
+     * Returns the maximum number of bytes decoded from a Base64 value of the
+     * given length.
+     */
+    public static int maxBase64DecodedLength(final int length) {
+        return length / 4 * 3 + 2;
+    }
+
+    /**
+     * Decodes a Base64 value into {@code dest}.
+     *
+     * @param src Base64 value
+     * @param dest buffer of {@link #maxBase64DecodedLength(int)} bytes
+     * @return the number of decoded bytes
+     */
+    public static int decodeBase64(final BytesRef src, final byte[] dest) {
+        int bits = 0;
+        int numBits = 0;
+        int pos = 0;
+        final int end = src.offset + src.length;
+        for (int i = src.offset; i < end; i++) {
+            final int c = src.bytes[i] & 0xff;
+            if (c == '=') {
+                break;
+            }
+            final int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException(
+                        "Illegal base64 character: " + (char) c);
+            }
+            bits = (bits << 6) | value;
+            numBits += 6;
+            if (numBits >= 8) {
+                numBits -= 8;
+                dest[pos++] = (byte) (bits >>> numBits);
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes Base64 characters into {@code dest}.
+     *
+     * @param src Base64 characters
+     * @param offset offset of {@code src}
+     * @param length the number of characters
+     * @param dest buffer of {@link #maxBase64DecodedLength(int)} bytes
+     * @return the number of decoded bytes
+     */
+    public static int decodeBase64(final char[] src, final int offset,
+            final int length, final byte[] dest) {
+        int bits = 0;
+        int numBits = 0;
+        int pos = 0;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            final char c = src[i];
+            if (c == '=') {
+                break;
+            }
+            final int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException(
+                        "Illegal base64 character: " + c);
+            }
+            bits = (bits << 6) | value;
+            numBits += 6;
+            if (numBits >= 8) {
+                numBits -= 8;
+                dest[pos++] = (byte) (bits >>> numBits);
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the number of characters of a padded Base64 value of the given
+     * bytes.
+     */
+    public static int base64EncodedLength(final int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Encodes bytes as padded Base64 characters, in the same form as
+     * {@link java.util.Base64#getEncoder()}.
+     *
+     * @param src bytes
+     * @param length the number of bytes
+     * @param dest buffer of {@link #base64EncodedLength(int)} characters
+     * @return the number of characters
+     */
+    public static int encodeBase64(final byte[] src, final int length,
+            final char[] dest) {
+        int pos = 0;
+        for (int i = 0; i < length; i += 3) {
+            final int remaining = length - i;
+            final int bits = (src[i] & 0xff) << 16
+                    | (remaining > 1 ? (src[i + 1] & 0xff) << 8 : 0)
+                    | (remaining > 2 ? src[i + 2] & 0xff : 0);
+            dest[pos++] = BASE64_CHARS[bits >>> 18 & 0x3f];
+            dest[pos++] = BASE64_CHARS[bits >>> 12 & 0x3f];
+            dest[pos++] = remaining > 1 ? BASE64_CHARS[bits >>> 6 & 0x3f]
+                    : '=';
+            dest[pos++] = remaining > 2 ? BASE64_CHARS[bits & 0x3f] : '=';
+        }
+        return pos;
+    }
+
+    /**
+     * Writes the bits of a signature as '0'/'1' characters, in the same form
+     * as {@link org.codelibs.minhash.MinHash#toBinaryString(byte[])}.
+     *
+     * @param src signature bytes
+     * @param length the number of bytes
+     * @param dest buffer of {@code length * 8} characters
+     */
+    public static void toBitString(final byte[] src, final int length,
+            final char[] dest) {
+        final int numBits = length * 8;
+        for (int i = 0; i < numBits; i++) {
+            dest[i] = (src[i >>> 3] & (1 << (i & 7))) != 0 ? '1' : '0';
+        }
+    }
+
+    /**
+     * Decodes a bit string created by
+     * {@link org.codelibs.minhash.MinHash#toBinaryString(byte[])} into
+     * {@code dest}.
+     *
+     * @param src bit string
+     * @param dest buffer of {@code (src.length + 7) / 8} bytes
+     * @return the number of decoded bytes
+     */
+    public static int decodeBitString(final BytesRef src, final byte[] dest) {
+        final int length = (src.length + 7) / 8;
+        Arrays.fill(dest, 0, length, (byte) 0);
+        for (int i = 0; i < src.length; i++) {
+            final byte c = src.bytes[src.offset + i];
+            if (c == '1') {
+                dest[i >>> 3] |= 1 << (i & 7);
+            } else if (c != '0') {
+                throw new IllegalArgumentException(
+                        "Illegal bit string character: " + (char) c);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a minhash value in the Base64 or bit string form.
+     */
+    public static byte[] decode(final String value, final boolean bitString) {
+        final BytesRef src = new BytesRef(value);
+        final byte[] dest = new byte[bitString ? (src.length + 7) / 8
+                : maxBase64DecodedLength(src.length)];
+        final int length = bitString ? decodeBitString(src, dest)
+                : decodeBase64(src, dest);
+        return Arrays.copyOf(dest, length);
+    }
+
+    /**
+     * Returns true if the value is a minhash value in the bit string form. A
+     * bit string has only '0' and '1', and has the bits of a minhash value.
+     * A Base64 value has fewer characters than the bits.
+     *
+     * @param value an encoded minhash value
+     * @param numBytes the number of bytes of a minhash value, or -1 if it is
+     *            unknown
+     */
+    public static boolean isBitString(final String value,
+            final int numBytes) {
+        if (numBytes >= 0 ? value.length() != numBytes * 8
+                : value.length() == 0 || value.length() % 8 != 0) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c != '0' && c != '1') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a minhash value into the Base64 or bit string form.
+     */
+    public static String encode(final byte[] value, final boolean bitString) {
+        if (bitString) {
+            final char[] chars = new char[value.length * 8];
+            toBitString(value, value.length, chars);
+            return new String(chars);
+        }
+        return Base64.getEncoder().encodeToString(value);
+    }
+
+    /**
+     * Returns the number of long words needed for the given bytes.
+     */
+    public static int numWords(final int numBytes) {
+        return (numBytes + 7) >>> 3;
+    }
+
+    /**
+     * Packs bytes into long words. Unused bits of the last word are cleared.
+     *
+     * @param src signature bytes
+     * @param length the number of bytes
+     * @param dest buffer of {@link #numWords(int)} words
+     */
+    public static void toWords(final byte[] src, final int length,
+            final long[] dest) {
+        toWords(src, 0, length, dest);
+    }
+
+    /**
+     * Packs bytes into long words. Bytes are in the little-endian order of
+     * words, so each full word is read at once.
+     *
+     * @param src signature bytes
+     * @param offset offset of {@code src}
+     * @param length the number of bytes
+     * @param dest buffer of {@link #numWords(int)} words
+     */
+    public static void toWords(final byte[] src, final int offset,
+            final int length, final long[] dest) {
+        final int numFullWords = length >>> 3;
+        for (int i = 0; i < numFullWords; i++) {
+            dest[i] = (long) BitUtil.VH_LE_LONG.get(src, offset + (i << 3));
+        }
+        final int rest = length & 7;
+        if (rest != 0) {
+            final int start = offset + (numFullWords << 3);
+            long word = 0;
+            for (int i = 0; i < rest; i++) {
+                word |= (src[start + i] & 0xffL) << (i << 3);
+            }
+            dest[numFullWords] = word;
+        }
+    }
+
+    /**
+     * Counts different bits between two signatures packed into words.
+     *
+     * This is a scalar loop unrolled by four words. The words of an
+     * iteration are counted into independent counters, so their bit counts
+     * do not wait for each other. The remaining words are counted one by
+     * one.
+     */
+    public static int countDifferentBits(final long[] words1,
+            final long[] words2, final int numWords) {
+        int count0 = 0;
+        int count1 = 0;
+        int count2 = 0;
+        int count3 = 0;
+        int i = 0;
+        for (final int end = numWords & ~3; i < end; i += 4) {
+            count0 += Long.bitCount(words1[i] ^ words2[i]);
+            count1 += Long.bitCount(words1[i + 1] ^ words2[i + 1]);
+            count2 += Long.bitCount(words1[i + 2] ^ words2[i + 2]);
+            count3 += Long.bitCount(words1[i + 3] ^ words2[i + 3]);
+        }
+        for (; i < numWords; i++) {
+            count0 += Long.bitCount(words1[i] ^ words2[i]);
+        }
+        return count0 + count1 + count2 + count3;
+    }
+
+    /**
+     * Counts different bits between two signatures packed into words, and
+     * stops counting when the count exceeds {@code limit}. The limit is
+     * checked every four words.
+     *
+     * @return the number of different bits, or a value greater than
+     *         {@code limit}
+     */
+    public static int countDifferentBits(final long[] words1,
+            final long[] words2, final int numWords, final int limit) {
+        int count = 0;
+        int i = 0;
+        for (final int end = numWords & ~3; i < end; i += 4) {
+            count += Long.bitCount(words1[i] ^ words2[i])
+                    + Long.bitCount(words1[i + 1] ^ words2[i + 1])
+                    + Long.bitCount(words1[i + 2] ^ words2[i + 2])
+                    + Long.bitCount(words1[i + 3] ^ words2[i + 3]);
+            if (count > limit) {
+                return count;
+            }
+        }
+        for (; i < numWords; i++) {
+            count += Long.bitCount(words1[i] ^ words2[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the maximum number of different bits between two signatures
+     * whose similarity is at least {@code minSimilarity}, or -1 if no
+     * signature is similar enough.
+     */
+    public static int maxDifferentBits(final int numBits,
+            final float minSimilarity) {
+        int distance = Math.max(0, (int) ((1 - minSimilarity) * numBits));
+        while (distance < numBits && similarity(distance + 1,
+                numBits) >= minSimilarity) {
+            distance++;
+        }
+        while (distance >= 0
+                && similarity(distance, numBits) < minSimilarity) {
+            distance--;
+        }
+        return distance;
+    }
+
+    private static float similarity(final int differentBits,
+            final int numBits) {
+        return (float) (numBits - differentBits) / numBits;
+    }
+
+    /**
+     * Returns the ratio of the same bits between two signatures, which is
+     * what {@link org.codelibs.minhash.MinHash#compare(byte[], byte[])}
+     * returns.
+     *
+     * @param words1 first signature packed into words
+     * @param words2 second signature packed into words
+     * @param numBytes the number of bytes of both signatures
+     * @return similarity between 0 and 1
+     */
+    public static float similarity(final long[] words1, final long[] words2,
+            final int numBytes) {
+        if (numBytes == 0) {
+            return 0f;
+        }
+        final int numBits = numBytes * 8;
+        return (float) (numBits
+                - countDifferentBits(words1, words2, numWords(numBytes)))
+                / numBits;
+    }
+
+    /**
+     * Returns {@code length} bits (up to 64) starting at {@code start}.
+     */
+    public static long bits(final long[] words, final int start,
+            final int length) {
+        final int index = start >>> 6;
+        final int shift = start & 63;
+        long value = words[index] >>> shift;
+        if (shift != 0 && shift + length > 64) {
+            value |= words[index + 1] << (64 - shift);
+        }
+        if (length < 64) {
+            value &= (1L << length) - 1;
+        }
+        return value;
+    }
+
+    /**
+     * Returns a 64-bit hash of an LSH band, which is used as a key of the
+     * band instead of {@link #bandTerm(byte[], int, int)}.
+     *
+     * @param words signature packed into words
+     * @param band band number
+     * @param rows number of bits in a band
+     */
+    public static long bandHash(final long[] words, final int band,
+            final int rows) {
+        long h = mix(band + 1L);
+        final int end = (band + 1) * rows;
+        for (int start = band * rows; start < end; start += 64) {
+            h = mix(h ^ bits(words, start, Math.min(64, end - start)));
+        }
+        return h;
+    }
+
+    /**
+     * Scrambles bits of the value (the finalizer of MurmurHash3).
+     */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Returns the number of bits in the signature.
+     */
+    public static int numBits(final byte[] signature) {
+        return signature.length * 8;
+    }
+
+    /**
+     * Returns the value of the given bit.
+     */
+    public static boolean getBit(final byte[] signature, final int index) {
+        return (signature[index >>> 3] & (1 << (index & 7))) != 0;
+    }
+
+    /**
+     * Creates an LSH band term. The term starts with the band number as two
+     * big-endian bytes, followed by the {@code rows} bits of the band.
+     *
+     * @param signature minhash signature
+     * @param band band number
+     * @param rows number of bits in a band
+     * @return band term
+     */
+    public static BytesRef bandTerm(final byte[] signature, final int band,
+            final int rows) {
+        final byte[] bytes = new byte[2 + (rows + 7) / 8];
+        bytes[0] = (byte) (band >>> 8);
+        bytes[1] = (byte) band;
+        final int offset = band * rows;
+        for (int i = 0; i < rows; i++) {
+            if (getBit(signature, offset + i)) {
+                bytes[2 + (i >>> 3)] |= 1 << (i & 7);
+            }
+        }
+        return new BytesRef(bytes);
+    }
+}
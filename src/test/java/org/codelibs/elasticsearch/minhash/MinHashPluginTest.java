@@ -17,17 +17,41 @@ package org.codelibs.elasticsearch.minhash;
 
 import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
 
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
-
+import java.util.TreeSet;
+
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.minhash.action.MinHashComputeAction;
+import org.codelibs.elasticsearch.minhash.action.MinHashJoinAction;
+import org.codelibs.elasticsearch.minhash.action.MinHashStatsAction;
+import org.codelibs.elasticsearch.minhash.index.query.MinHashKnnQueryBuilder;
+import org.codelibs.elasticsearch.minhash.index.query.MinHashSimilarityQueryBuilder;
+import org.codelibs.elasticsearch.minhash.search.aggregations.InternalMinHashClusters;
+import org.codelibs.elasticsearch.minhash.search.aggregations.MinHashClustersAggregationBuilder;
+import org.codelibs.elasticsearch.minhash.stats.MinHashStats;
 import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.codelibs.minhash.MinHash;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.DocWriteResponse.Result;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.document.DocumentField;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.Settings.Builder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.IncludeExclude;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.elasticsearch.xcontent.XContentFactory;
 import org.elasticsearch.xcontent.XContentType;
@@ -79,10 +103,16 @@ public class MinHashPluginTest extends TestCase {
             final String indexSettings = "{\"index\":{\"analysis\":{\"analyzer\":{"
                     + "\"minhash_analyzer1\":{\"type\":\"custom\",\"tokenizer\":\"standard\",\"filter\":[\"minhash\"]},"
                     + "\"minhash_analyzer2\":{\"type\":\"custom\",\"tokenizer\":\"standard\",\"filter\":[\"my_minhashfilter1\"]},"
-                    + "\"minhash_analyzer3\":{\"type\":\"custom\",\"tokenizer\":\"standard\",\"filter\":[\"my_minhashfilter2\"]}"
+                    + "\"minhash_analyzer3\":{\"type\":\"custom\",\"tokenizer\":\"standard\",\"filter\":[\"my_minhashfilter2\"]},"
+                    + "\"minhash_analyzer4\":{\"type\":\"custom\",\"tokenizer\":\"standard\",\"filter\":[\"my_minhashfilter3\"]},"
+                    + "\"minhash_analyzer5\":{\"type\":\"custom\",\"tokenizer\":\"standard\",\"filter\":[\"my_minhashfilter4\"]},"
+                    + "\"minhash_analyzer6\":{\"type\":\"custom\",\"tokenizer\":\"standard\",\"filter\":[\"my_minhashfilter5\"]}"
                     + "},\"filter\":{"
                     + "\"my_minhashfilter1\":{\"type\":\"minhash\",\"seed\":1000},"
-                    + "\"my_minhashfilter2\":{\"type\":\"minhash\",\"bit\":2,\"size\":32,\"seed\":1000}"
+                    + "\"my_minhashfilter2\":{\"type\":\"minhash\",\"bit\":2,\"size\":32,\"seed\":1000},"
+                    + "\"my_minhashfilter3\":{\"type\":\"minhash\",\"hash_strategy\":\"one_permutation\"},"
+                    + "\"my_minhashfilter4\":{\"type\":\"minhash\",\"mode\":\"weighted\"},"
+                    + "\"my_minhashfilter5\":{\"type\":\"minhash\",\"shingle_size\":2}"
                     + "}}}}";
             runner.createIndex(index, Settings.builder()
                     .loadFromSource(indexSettings, XContentType.JSON).build());
@@ -109,7 +139,11 @@ public class MinHashPluginTest extends TestCase {
                     .field("copy_to",
                             Lists.newArrayList("minhash_value1",
                                     "minhash_value2", "minhash_value3",
-                                    "minhash_value4"))//
+                                    "minhash_value4", "minhash_value5",
+                                    "minhash_value6", "minhash_value7",
+                                    "minhash_value9", "minhash_value10",
+                                    "minhash_value11", "minhash_value12",
+                                    "minhash_value13", "minhash_value14"))//
                     .endObject()//
 
                     // minhash
@@ -140,6 +174,92 @@ public class MinHashPluginTest extends TestCase {
                     .field("minhash_analyzer", "minhash_analyzer1")//
                     .endObject()//
 
+                    // minhash
+                    .startObject("minhash_value5")//
+                    .field("type", "minhash")//
+                    .field("minhash_analyzer", "minhash_analyzer1")//
+                    .field("lsh_bands", 16)//
+                    .field("lsh_rows", 8)//
+                    .endObject()//
+
+                    // minhash
+                    .startObject("minhash_value6")//
+                    .field("type", "minhash")//
+                    .field("minhash_analyzer", "minhash_analyzer1")//
+                    .field("doc_values_format", "binary")//
+                    .endObject()//
+
+                    // minhash
+                    .startObject("minhash_value7")//
+                    .field("type", "minhash")//
+                    .field("minhash_analyzer", "minhash_analyzer4")//
+                    .endObject()//
+
+                    // minhash
+                    .startObject("minhash_value8")//
+                    .field("type", "minhash")//
+                    .field("store", true)//
+                    .field("precomputed", true)//
+                    .field("minhash_analyzer", "minhash_analyzer1")//
+                    .endObject()//
+
+                    // minhash
+                    .startObject("minhash_value9")//
+                    .field("type", "minhash")//
+                    .field("store", true)//
+                    .field("minhash_analyzer", "minhash_analyzer5")//
+                    .endObject()//
+
+                    // minhash
+                    .startObject("minhash_value10")//
+                    .field("type", "minhash")//
+                    .field("store", true)//
+                    .field("bit_string", true)//
+                    .field("packed", true)//
+                    .field("minhash_analyzer", "minhash_analyzer1")//
+                    .endObject()//
+
+                    // minhash
+                    .startObject("minhash_value11")//
+                    .field("type", "minhash")//
+                    .field("parallel_chunk_size", 2)//
+                    .field("minhash_analyzer", "minhash_analyzer6")//
+                    .endObject()//
+
+                    // minhash
+                    .startObject("minhash_value12")//
+                    .field("type", "minhash")//
+                    .field("store", true)//
+                    .field("minhash_analyzer", "minhash_analyzer1")//
+                    .endObject()//
+
+                    // minhash
+                    .startObject("minhash_value13")//
+                    .field("type", "minhash")//
+                    .field("store", true)//
+                    .field("parallel_chunk_size", 8)//
+                    .field("minhash_analyzer", "minhash_analyzer1")//
+                    .endObject()//
+
+                    // minhash
+                    .startObject("minhash_value14")//
+                    .field("type", "minhash")//
+                    .field("store", true)//
+                    .field("minhash_analyzer", "minhash_analyzer1")//
+                    .startObject("fields")//
+                    .startObject("seed1000")//
+                    .field("type", "minhash")//
+                    .field("store", true)//
+                    .field("minhash_analyzer", "minhash_analyzer2")//
+                    .endObject()//
+                    .startObject("bit2")//
+                    .field("type", "minhash")//
+                    .field("store", true)//
+                    .field("minhash_analyzer", "minhash_analyzer3")//
+                    .endObject()//
+                    .endObject()//
+                    .endObject()//
+
                     .endObject()//
                     .endObject();
             runner.createMapping(index, mappingBuilder);
@@ -156,6 +276,26 @@ public class MinHashPluginTest extends TestCase {
                             + i % 100 + "\",\"num\":" + i + "}");
             assertEquals(Result.CREATED, indexResponse1.getResult());
         }
+
+        // precomputed minhash values
+        final byte[] precomputedBytes = Base64.getDecoder()
+                .decode("Uji99jenq7da3aNKTYc8yQ==");
+        final StringBuilder bytesJson = new StringBuilder();
+        for (final byte b : precomputedBytes) {
+            bytesJson.append(bytesJson.length() == 0 ? "" : ",").append(b);
+        }
+        assertEquals(Result.CREATED, runner.insert(index, "precomputed1",
+                "{\"minhash_value8\":\"Uji99jenq7da3aNKTYc8yQ==\"}")
+                .getResult());
+        assertEquals(Result.CREATED, runner.insert(index, "precomputed2",
+                "{\"minhash_value8\":[" + bytesJson + "]}").getResult());
+        try {
+            runner.insert(index, "precomputed3",
+                    "{\"minhash_value8\":\"W51pEPuK8tw=\"}");
+            fail();
+        } catch (final Exception e) {
+            // 8 bytes instead of 16 bytes
+        }
         runner.refresh();
 
         final Client client = runner.client();
@@ -169,6 +309,460 @@ public class MinHashPluginTest extends TestCase {
         test_get(client, index, "101", "Uji99jenq7da3aNKTYc8yQ==",
                 "fUkN7K0iiMHp1MxiGXnIaw==", "W51pEPuK8tw=");
 
+        // multi-fields calculated with the tokens of the parent field
+        final GetResponse multiFieldsResponse = client.prepareGet(index, "2")
+                .setStoredFields(new String[] { "minhash_value14.seed1000",
+                        "minhash_value14.bit2" })
+                .execute().actionGet();
+        assertEquals("8ShNb6UVCgPh16yxOd2Lew==",
+                multiFieldsResponse.getField("minhash_value14.seed1000")
+                        .getValue());
+        assertEquals("i11gJHsY/zw=",
+                multiFieldsResponse.getField("minhash_value14.bit2").getValue());
+
+        for (final String id : new String[] { "precomputed1",
+                "precomputed2" }) {
+            final GetResponse precomputedResponse = client
+                    .prepareGet(index, id)
+                    .setStoredFields(new String[] { "minhash_value8" })
+                    .execute().actionGet();
+            assertEquals("Uji99jenq7da3aNKTYc8yQ==", precomputedResponse
+                    .getField("minhash_value8").getValue());
+        }
+
+        // packed values are rendered as bit strings
+        final String bitString = MinHash.toBinaryString(precomputedBytes);
+        final GetResponse packedResponse = client.prepareGet(index, "1")
+                .setStoredFields(new String[] { "minhash_value10" }).execute()
+                .actionGet();
+        assertEquals(bitString,
+                packedResponse.getField("minhash_value10").getValue());
+        test_search(client, index, QueryBuilders.constantScoreQuery(
+                QueryBuilders.termQuery("minhash_value10", bitString)), 10);
+
+        // values in the other form are accepted
+        test_search(client, index, QueryBuilders.constantScoreQuery(
+                QueryBuilders.termQuery("minhash_value10",
+                        "Uji99jenq7da3aNKTYc8yQ==")),
+                10);
+        try {
+            client.prepareSearch(index)
+                    .setQuery(QueryBuilders.termQuery("minhash_value10",
+                            "not a minhash value"))
+                    .execute().actionGet().decRef();
+            fail();
+        } catch (final ElasticsearchException e) {
+            // packed fields require a minhash value
+        }
+        test_search(client, index, QueryBuilders.constantScoreQuery(
+                QueryBuilders.termQuery("minhash_value1", bitString)), 10);
+        test_search(client, index,
+                new MinHashSimilarityQueryBuilder("minhash_value1", null,
+                        bitString).minSimilarity(0.9f),
+                10);
+
+        // without repeated tokens, the weighted value is the set value
+        final GetResponse weightedResponse = client.prepareGet(index, "1")
+                .setStoredFields(new String[] { "minhash_value9" }).execute()
+                .actionGet();
+        assertEquals("Uji99jenq7da3aNKTYc8yQ==",
+                weightedResponse.getField("minhash_value9").getValue());
+        final IndexResponse repeatedResponse = client
+                .prepareIndex(index).setId("weighted")
+                .setSource("{\"msg\":\"test test test 1\"}", XContentType.JSON)
+                .execute().actionGet();
+        assertEquals(Result.CREATED, repeatedResponse.getResult());
+        final GetResponse repeatedGetResponse = client
+                .prepareGet(index, "weighted")
+                .setStoredFields(
+                        new String[] { "minhash_value1", "minhash_value9" })
+                .execute().actionGet();
+        assertEquals("Uji99jenq7da3aNKTYc8yQ==",
+                repeatedGetResponse.getField("minhash_value1").getValue());
+        assertFalse("Uji99jenq7da3aNKTYc8yQ==".equals(
+                repeatedGetResponse.getField("minhash_value9").getValue()));
+        client.prepareDelete(index, "weighted").execute().actionGet();
+
+        // chunked and unchunked values of a longer text
+        client.prepareIndex(index).setId("chunked")
+                .setSource("{\"msg\":\"The quick brown fox jumps over "
+                        + "the lazy dog and runs into the forest\"}",
+                        XContentType.JSON)
+                .execute().actionGet();
+        final GetResponse chunkedResponse = client.prepareGet(index, "chunked")
+                .setStoredFields(
+                        new String[] { "minhash_value12", "minhash_value13" })
+                .execute().actionGet();
+        assertEquals(chunkedResponse.getField("minhash_value12").getValue(),
+                chunkedResponse.getField("minhash_value13").getValue());
+        client.prepareDelete(index, "chunked").execute().actionGet();
+
+        // multiple values in binary doc values
+        assertEquals(Result.CREATED, client.prepareIndex(index).setId("multi")
+                .setSource("{\"minhash_value6\":[\"test 1\",\"test 2\"]}",
+                        XContentType.JSON)
+                .execute().actionGet().getResult());
+        runner.refresh();
+        final SearchResponse multiResponse = client.prepareSearch(index)
+                .setQuery(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.idsQuery().addIds("multi"))
+                        .filter(new MinHashSimilarityQueryBuilder(
+                                "minhash_value6", "test 1", null)
+                                        .minSimilarity(0.0f)))
+                .execute().actionGet();
+        try {
+            assertEquals(1, multiResponse.getHits().getTotalHits().value);
+        } finally {
+            multiResponse.decRef();
+        }
+        client.prepareDelete(index, "multi").execute().actionGet();
+        runner.refresh();
+
+        // minhash values calculated by an ingest pipeline
+        client.admin().cluster().preparePutPipeline("minhash",
+                new BytesArray("{\"processors\":[{\"minhash\":{"
+                        + "\"field\":\"msg\",\"target_field\":\"minhash_value8\","
+                        + "\"filter\":[\"minhash\"]}}]}"),
+                XContentType.JSON).execute().actionGet();
+        final IndexResponse ingestResponse = client.prepareIndex(index)
+                .setId("ingest").setPipeline("minhash")
+                .setSource("{\"msg\":\"test 1\"}", XContentType.JSON)
+                .execute().actionGet();
+        assertEquals(Result.CREATED, ingestResponse.getResult());
+        final GetResponse ingestGetResponse = client.prepareGet(index, "ingest")
+                .setStoredFields(new String[] { "minhash_value8" }).execute()
+                .actionGet();
+        assertEquals("Uji99jenq7da3aNKTYc8yQ==",
+                ingestGetResponse.getField("minhash_value8").getValue());
+        client.prepareDelete(index, "ingest").execute().actionGet();
+
+        // near-duplicates found in the index and in recent documents
+        client.admin().cluster().preparePutPipeline("minhash_tag",
+                new BytesArray("{\"processors\":[{\"minhash\":{"
+                        + "\"field\":\"msg\",\"target_field\":\"minhash_value8\","
+                        + "\"filter\":[\"minhash\"],\"duplicate\":\"tag\"}}]}"),
+                XContentType.JSON).execute().actionGet();
+        client.prepareIndex(index).setId("dedup1").setPipeline("minhash_tag")
+                .setSource("{\"msg\":\"test 1\"}", XContentType.JSON)
+                .execute().actionGet();
+        final Object duplicateOf = client.prepareGet(index, "dedup1")
+                .execute().actionGet().getSourceAsMap().get("duplicate_of");
+        assertTrue("precomputed1".equals(duplicateOf)
+                || "precomputed2".equals(duplicateOf));
+        client.admin().cluster().preparePutPipeline("minhash_drop",
+                new BytesArray("{\"processors\":[{\"minhash\":{"
+                        + "\"field\":\"msg\",\"target_field\":\"minhash_value8\","
+                        + "\"filter\":[\"minhash\"],\"duplicate\":\"drop\"}}]}"),
+                XContentType.JSON).execute().actionGet();
+        client.prepareIndex(index).setId("dedup2").setPipeline("minhash_drop")
+                .setSource("{\"msg\":\"test 1\"}", XContentType.JSON)
+                .execute().actionGet();
+        assertFalse(client.prepareGet(index, "dedup2").execute().actionGet()
+                .isExists());
+        client.admin().cluster().preparePutPipeline("minhash_recent",
+                new BytesArray("{\"processors\":[{\"minhash\":{"
+                        + "\"field\":\"msg\",\"target_field\":\"minhash_value8\","
+                        + "\"filter\":[\"minhash\"],\"duplicate\":\"tag\","
+                        + "\"duplicate_lookup\":false}}]}"),
+                XContentType.JSON).execute().actionGet();
+        client.prepareIndex(index).setId("dedup3").setPipeline("minhash_recent")
+                .setSource("{\"msg\":\"test 2\"}", XContentType.JSON)
+                .execute().actionGet();
+        client.prepareIndex(index).setId("dedup5").setPipeline("minhash_recent")
+                .setSource("{\"msg\":\"test 2\"}", XContentType.JSON)
+                .execute().actionGet();
+        assertNull(client.prepareGet(index, "dedup3").execute().actionGet()
+                .getSourceAsMap().get("duplicate_of"));
+        assertEquals("dedup3", client.prepareGet(index, "dedup5").execute()
+                .actionGet().getSourceAsMap().get("duplicate_of"));
+
+        // invalid processor settings
+        for (final String option : new String[] {
+                "\"duplicate_min_similarity\":\"abc\"",
+                "\"duplicate_window\":10001",
+                "\"duplicate\":\"drop\",\"duplicate_lookup\":false" }) {
+            try {
+                client.admin().cluster().preparePutPipeline("minhash_invalid",
+                        new BytesArray("{\"processors\":[{\"minhash\":{"
+                                + "\"field\":\"msg\",\"target_field\":\"minhash_value8\","
+                                + "\"filter\":[\"minhash\"],\"duplicate\":\"tag\","
+                                + option + "}}]}"),
+                        XContentType.JSON).execute().actionGet();
+                fail(option);
+            } catch (final ElasticsearchException e) {
+                // expected
+            }
+        }
+
+        // recent values of another index are not duplicates
+        final String otherIndex = "dataset_other";
+        client.admin().indices().prepareCreate(otherIndex)
+                .setSettings(Settings.builder()
+                        .put("index.analysis.analyzer.minhash_analyzer.tokenizer",
+                                "standard")
+                        .putList("index.analysis.analyzer.minhash_analyzer.filter",
+                                "minhash"))
+                .setMapping("{\"properties\":{\"minhash_value8\":{"
+                        + "\"type\":\"minhash\","
+                        + "\"minhash_analyzer\":\"minhash_analyzer\"}}}")
+                .execute().actionGet();
+        client.prepareIndex(otherIndex).setId("dedup4")
+                .setPipeline("minhash_recent")
+                .setSource("{\"msg\":\"test 2\"}", XContentType.JSON)
+                .execute().actionGet();
+        assertNull(client.prepareGet(otherIndex, "dedup4").execute()
+                .actionGet().getSourceAsMap().get("duplicate_of"));
+        assertTrue(indexStats(client, otherIndex).getDocs() >= 1);
+        client.admin().indices().prepareDelete(otherIndex).execute()
+                .actionGet();
+        // counters of a deleted index are removed
+        for (final MinHashStatsAction.NodeResponse node : client
+                .execute(MinHashStatsAction.INSTANCE,
+                        new MinHashStatsAction.Request().indices(otherIndex))
+                .actionGet().getNodes()) {
+            assertNull(node.getIndices().get(otherIndex));
+        }
+
+        // documents without ids in the same bulk request
+        final BulkResponse dedupBulkResponse = client.prepareBulk()
+                .add(client.prepareIndex(index).setPipeline("minhash_recent")
+                        .setSource("{\"msg\":\"test 3\"}", XContentType.JSON))
+                .add(client.prepareIndex(index).setPipeline("minhash_recent")
+                        .setSource("{\"msg\":\"test 3\"}", XContentType.JSON))
+                .execute().actionGet();
+        final BulkItemResponse[] dedupItems = dedupBulkResponse.getItems();
+        assertEquals(Result.CREATED, dedupItems[0].getResponse().getResult());
+        assertEquals(dedupItems[0].getId(),
+                client.prepareGet(index, dedupItems[1].getId()).execute()
+                        .actionGet().getSourceAsMap().get("duplicate_of"));
+        for (final BulkItemResponse item : dedupItems) {
+            client.prepareDelete(index, item.getId()).execute().actionGet();
+        }
+        client.prepareDelete(index, "dedup1").execute().actionGet();
+        client.prepareDelete(index, "dedup3").execute().actionGet();
+        client.prepareDelete(index, "dedup5").execute().actionGet();
+
+        // minhash values of appended texts
+        client.admin().cluster().preparePutPipeline("minhash_append",
+                new BytesArray("{\"processors\":[{\"minhash\":{"
+                        + "\"field\":\"msg\",\"target_field\":\"minhash_value8\","
+                        + "\"filter\":[\"minhash\"],\"state_field\":\"minhash_state\"}}]}"),
+                XContentType.JSON).execute().actionGet();
+        client.prepareIndex(index).setId("append").setPipeline("minhash_append")
+                .setSource("{\"msg\":\"test 1\"}", XContentType.JSON)
+                .execute().actionGet();
+        final Map<String, Object> appendSource = client
+                .prepareGet(index, "append").execute().actionGet()
+                .getSourceAsMap();
+        assertEquals(5, ((Map<?, ?>) appendSource.get("minhash_state"))
+                .get("offset"));
+        appendSource.put("msg", "test 1 test 1");
+        client.prepareIndex(index).setId("append").setPipeline("minhash_append")
+                .setSource(appendSource).execute().actionGet();
+        final GetResponse appendResponse = client.prepareGet(index, "append")
+                .setStoredFields(new String[] { "_source", "minhash_value8" })
+                .execute().actionGet();
+        assertEquals("Uji99jenq7da3aNKTYc8yQ==",
+                appendResponse.getField("minhash_value8").getValue());
+        final Map<String, Object> editSource = appendResponse
+                .getSourceAsMap();
+        assertEquals(12, ((Map<?, ?>) editSource.get("minhash_state"))
+                .get("offset"));
+
+        // a changed text before the offset is calculated from scratch
+        editSource.put("msg", "test 2 test 1");
+        client.prepareIndex(index).setId("append").setPipeline("minhash_append")
+                .setSource(editSource).execute().actionGet();
+        client.prepareIndex(index).setId("append2")
+                .setPipeline("minhash_append")
+                .setSource("{\"msg\":\"test 2 test 1\"}", XContentType.JSON)
+                .execute().actionGet();
+        final Object editedValue = client.prepareGet(index, "append")
+                .setStoredFields(new String[] { "minhash_value8" }).execute()
+                .actionGet().getField("minhash_value8").getValue();
+        assertFalse("Uji99jenq7da3aNKTYc8yQ==".equals(editedValue));
+        assertEquals(client.prepareGet(index, "append2")
+                .setStoredFields(new String[] { "minhash_value8" }).execute()
+                .actionGet().getField("minhash_value8").getValue(),
+                editedValue);
+        client.prepareDelete(index, "append").execute().actionGet();
+        client.prepareDelete(index, "append2").execute().actionGet();
+
+        // a state of other filter settings is calculated from scratch
+        client.admin().cluster().preparePutPipeline("minhash_append_seed",
+                new BytesArray("{\"processors\":[{\"minhash\":{"
+                        + "\"field\":\"msg\",\"target_field\":\"minhash_value8\","
+                        + "\"filter\":[{\"type\":\"minhash\",\"seed\":1000}],"
+                        + "\"state_field\":\"minhash_state\"}}]}"),
+                XContentType.JSON).execute().actionGet();
+        client.prepareIndex(index).setId("append3")
+                .setPipeline("minhash_append")
+                .setSource("{\"msg\":\"test 1\"}", XContentType.JSON)
+                .execute().actionGet();
+        final Map<String, Object> seedSource = client
+                .prepareGet(index, "append3").execute().actionGet()
+                .getSourceAsMap();
+        seedSource.put("msg", "test 1 test 1");
+        client.prepareIndex(index).setId("append3")
+                .setPipeline("minhash_append_seed").setSource(seedSource)
+                .execute().actionGet();
+        assertEquals("fUkN7K0iiMHp1MxiGXnIaw==",
+                client.prepareGet(index, "append3")
+                        .setStoredFields(new String[] { "minhash_value8" })
+                        .execute().actionGet().getField("minhash_value8")
+                        .getValue());
+        client.prepareDelete(index, "append3").execute().actionGet();
+        runner.refresh();
+
+        for (final String field : new String[] { "minhash_value1",
+                "minhash_value4", "minhash_value5", "minhash_value6",
+                "minhash_value7", "minhash_value10", "minhash_value11" }) {
+            test_search(client, index,
+                    new MinHashSimilarityQueryBuilder(field, "test 1", null)
+                            .minSimilarity(0.9f),
+                    10);
+        }
+        test_search(client, index, new MinHashSimilarityQueryBuilder(
+                "minhash_value1", null, "Uji99jenq7da3aNKTYc8yQ==")
+                        .minSimilarity(0.9f),
+                10);
+
+        // candidates from lsh_bands and lsh_rows
+        test_search(client, index,
+                new MinHashSimilarityQueryBuilder("minhash_value5", "test 1",
+                        null).minSimilarity(0.9f).useLsh(true),
+                10);
+        test_search(client, index, QueryBuilders.constantScoreQuery(
+                new MinHashKnnQueryBuilder("minhash_value5", "test 1", null)
+                        .k(10).useLsh(true)),
+                10);
+
+        for (final String field : new String[] { "minhash_value1",
+                "minhash_value5", "minhash_value6" }) {
+            final SearchResponse knnResponse = client.prepareSearch(index)
+                    .setQuery(new MinHashKnnQueryBuilder(field, "test 1", null)
+                            .k(10))
+                    .setSize(10).execute().actionGet();
+            try {
+                assertEquals(10, knnResponse.getHits().getHits().length);
+                for (final SearchHit hit : knnResponse.getHits().getHits()) {
+                    assertEquals(1, Integer.parseInt(hit.getId()) % 100);
+                    assertEquals(1.0f, hit.getScore(), 0.0001f);
+                }
+            } finally {
+                knnResponse.decRef();
+            }
+        }
+
+        final MinHashStats.Stats statsBeforeCompute = indexStats(client,
+                index);
+        final MinHashComputeAction.Response computeResponse = client
+                .execute(MinHashComputeAction.INSTANCE,
+                        new MinHashComputeAction.Request(index)
+                                .field("minhash_value1")
+                                .texts(List.of("test 1", "test 2")))
+                .actionGet();
+        assertEquals(List.of("Uji99jenq7da3aNKTYc8yQ==",
+                "AGB9/Yen+yf/lBvJKtMdQA=="), computeResponse.getSignatures());
+
+        final MinHashStats.Stats indexStats = indexStats(client, index);
+        // 7 minhash fields for each document, including replicas
+        assertTrue(indexStats.getDocs() >= 7000);
+        assertTrue(indexStats.getTokens() > indexStats.getDocs());
+        // tokens of the compute API and searches are not indexed tokens
+        assertEquals(statsBeforeCompute.getTokens(), indexStats.getTokens());
+
+        // 100 groups of 10 documents with the same text
+        final MinHashJoinAction.Response joinResponse = client
+                .execute(MinHashJoinAction.INSTANCE,
+                        new MinHashJoinAction.Request(index)
+                                .field("minhash_value5").minSimilarity(1.0f))
+                .actionGet();
+        assertFalse(joinResponse.isTruncated());
+        assertEquals(4500, joinResponse.getTotalPairs());
+        assertEquals(4500, joinResponse.getPairs().size());
+        for (final MinHashJoinAction.Pair pair : joinResponse.getPairs()) {
+            assertEquals(Integer.parseInt(pair.getId1()) % 100,
+                    Integer.parseInt(pair.getId2()) % 100);
+            assertEquals(1.0f, pair.getSimilarity(), 0.0001f);
+        }
+
+        final SearchResponse aggResponse = client.prepareSearch(index)
+                .setSize(0)
+                .addAggregation(new MinHashClustersAggregationBuilder(
+                        "clusters", "minhash_value5").lsh(2, 64).size(5))
+                .execute().actionGet();
+        try {
+            final InternalMinHashClusters clusters = aggResponse
+                    .getAggregations().get("clusters");
+            assertEquals(5, clusters.getClusters().size());
+            for (final InternalMinHashClusters.Cluster cluster : clusters
+                    .getClusters()) {
+                assertEquals(10, cluster.getDocCount());
+            }
+        } finally {
+            aggResponse.decRef();
+        }
+
+        // clusters are built per parent bucket
+        final SearchResponse nestedAggResponse = client.prepareSearch(index)
+                .setSize(0)
+                .addAggregation(AggregationBuilders.terms("ids").field("id")
+                        .includeExclude(new IncludeExclude(null, null,
+                                new TreeSet<>(List.of(new BytesRef("1"),
+                                        new BytesRef("101"),
+                                        new BytesRef("201"))),
+                                null))
+                        .subAggregation(new MinHashClustersAggregationBuilder(
+                                "clusters", "minhash_value5").lsh(2, 64)
+                                        .minDocCount(1)))
+                .execute().actionGet();
+        try {
+            final Terms ids = nestedAggResponse.getAggregations().get("ids");
+            assertEquals(3, ids.getBuckets().size());
+            for (final Terms.Bucket bucket : ids.getBuckets()) {
+                final InternalMinHashClusters clusters = bucket
+                        .getAggregations().get("clusters");
+                assertEquals(1, clusters.getClusters().size());
+                assertEquals(1,
+                        clusters.getClusters().get(0).getDocCount());
+            }
+        } finally {
+            nestedAggResponse.decRef();
+        }
+
+    }
+
+    private MinHashStats.Stats indexStats(final Client client,
+            final String index) {
+        final MinHashStatsAction.Response statsResponse = client
+                .execute(MinHashStatsAction.INSTANCE,
+                        new MinHashStatsAction.Request().indices(index))
+                .actionGet();
+        final MinHashStats.Stats total = new MinHashStats.Stats();
+        for (final MinHashStatsAction.NodeResponse node : statsResponse
+                .getNodes()) {
+            final MinHashStats.Stats stats = node.getIndices().get(index);
+            if (stats != null) {
+                total.add(stats);
+            }
+        }
+        return total;
+    }
+
+    private void test_search(final Client client, final String index,
+            final QueryBuilder query, final int expected) {
+        final SearchResponse response = client.prepareSearch(index)
+                .setQuery(query).setSize(100).execute().actionGet();
+        try {
+            assertEquals(expected, response.getHits().getTotalHits().value);
+            for (final SearchHit hit : response.getHits().getHits()) {
+                assertEquals(1, Integer.parseInt(hit.getId()) % 100);
+                assertEquals(1.0f, hit.getScore(), 0.0001f);
+            }
+        } finally {
+            response.decRef();
+        }
     }
 
     private void test_get(final Client client, final String index,
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.analysis;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import junit.framework.TestCase;
+
+public class MinHashAccumulatorTest extends TestCase {
+
+    private static final String[] TOKENS = { "aaa", "bbb", "ccc", "ddd",
+            "eee", "fff", "ggg", "hhh", "iii", "jjj" };
+
+    private static final String[] REPEATED_TOKENS = { "aaa", "bbb", "aaa",
+            "ccc", "bbb", "aaa", "ddd", "ccc", "aaa", "eee" };
+
+    public void test_merge_onePermutation() {
+        assertMerged(() -> new OnePermutationMinHashAccumulator(0, 16, 1),
+                TOKENS);
+        assertMerged(() -> new OnePermutationMinHashAccumulator(3, 128, 2),
+                TOKENS);
+    }
+
+    public void test_merge_singleHash() {
+        assertMerged(() -> new SingleHashMinHashAccumulator(0, 16, 1),
+                TOKENS);
+        assertMerged(() -> new SingleHashMinHashAccumulator(3, 128, 2),
+                TOKENS);
+    }
+
+    public void test_merge_weighted() {
+        assertMerged(() -> new WeightedMinHashAccumulator(
+                new OnePermutationMinHashAccumulator(0, 16, 1)),
+                REPEATED_TOKENS);
+        assertMerged(() -> new WeightedMinHashAccumulator(
+                new SingleHashMinHashAccumulator(3, 128, 2)),
+                REPEATED_TOKENS);
+        // frequencies in different chunks are summed
+        final MinHashAccumulator accumulator = new WeightedMinHashAccumulator(
+                new OnePermutationMinHashAccumulator(0, 128, 1));
+        accumulator.add("aaa");
+        final MinHashAccumulator other = new WeightedMinHashAccumulator(
+                new OnePermutationMinHashAccumulator(0, 128, 1));
+        other.add("aaa");
+        accumulator.merge(other);
+        final MinHashAccumulator once = new WeightedMinHashAccumulator(
+                new OnePermutationMinHashAccumulator(0, 128, 1));
+        once.add("aaa");
+        assertFalse(Arrays.toString(once.toSignature())
+                .equals(Arrays.toString(accumulator.toSignature())));
+    }
+
+    public void test_merge_shingle() {
+        for (int shingleSize = 2; shingleSize <= 3; shingleSize++) {
+            final int size = shingleSize;
+            final Supplier<MinHashAccumulator> supplier = () -> new ShingleMinHashAccumulator(
+                    new OnePermutationMinHashAccumulator(0, 16, 1), size, 0);
+            assertMerged(supplier, TOKENS);
+            assertMerged(supplier, REPEATED_TOKENS);
+            // fewer tokens than a shingle
+            for (int length = 1; length <= shingleSize; length++) {
+                assertMerged(supplier, Arrays.copyOf(TOKENS, length));
+            }
+            // chunks of a single token
+            final MinHashAccumulator accumulator = accumulate(supplier,
+                    TOKENS, 0, 1);
+            for (int i = 1; i < TOKENS.length; i++) {
+                accumulator.merge(accumulate(supplier, TOKENS, i, i + 1));
+            }
+            assertEquals(
+                    Arrays.toString(accumulate(supplier, TOKENS, 0,
+                            TOKENS.length).toSignature()),
+                    Arrays.toString(accumulator.toSignature()));
+        }
+    }
+
+    public void test_merge_incompatible() {
+        final MinHashAccumulator accumulator = new OnePermutationMinHashAccumulator(
+                0, 16, 1);
+        try {
+            accumulator
+                    .merge(new OnePermutationMinHashAccumulator(0, 32, 1));
+            fail();
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new ShingleMinHashAccumulator(accumulator, 2, 0)
+                    .merge(new ShingleMinHashAccumulator(
+                            new OnePermutationMinHashAccumulator(0, 16, 1),
+                            3, 0));
+            fail();
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            accumulator.merge(new SingleHashMinHashAccumulator(0, 16, 1));
+            fail();
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Asserts that the tokens split into chunks at every position, merged in
+     * order as the chunked calculation does, make the signature of the
+     * whole tokens.
+     */
+    private static void assertMerged(
+            final Supplier<MinHashAccumulator> supplier,
+            final String[] tokens) {
+        final String expected = Arrays
+                .toString(accumulate(supplier, tokens, 0, tokens.length)
+                        .toSignature());
+        for (int i = 0; i <= tokens.length; i++) {
+            for (int j = i; j <= tokens.length; j++) {
+                final MinHashAccumulator accumulator = accumulate(supplier,
+                        tokens, 0, i);
+                accumulator.merge(accumulate(supplier, tokens, i, j));
+                accumulator.merge(
+                        accumulate(supplier, tokens, j, tokens.length));
+                assertEquals("chunks [0, " + i + ", " + j + "]", expected,
+                        Arrays.toString(accumulator.toSignature()));
+            }
+        }
+    }
+
+    private static MinHashAccumulator accumulate(
+            final Supplier<MinHashAccumulator> supplier,
+            final String[] tokens, final int start, final int end) {
+        final MinHashAccumulator accumulator = supplier.get();
+        for (int i = start; i < end; i++) {
+            accumulator.add(tokens[i]);
+        }
+        return accumulator;
+    }
+}
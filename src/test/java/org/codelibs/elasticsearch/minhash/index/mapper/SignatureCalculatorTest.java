@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.index.mapper;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class SignatureCalculatorTest extends TestCase {
+
+    public void test_chunkBounds() {
+        // a boundary at whitespace is kept
+        assertEquals("[0, 4, 9, 14]", Arrays.toString(
+                SignatureCalculator.chunkBounds("aaaa bbbb cccc", 4)));
+        // a boundary in a token moves to the next whitespace
+        assertEquals("[0, 4, 9]", Arrays.toString(
+                SignatureCalculator.chunkBounds("aaaa bbbb", 2)));
+        assertEquals("[0, 5, 11]", Arrays.toString(
+                SignatureCalculator.chunkBounds("aa bb\tcc\ndd", 4)));
+    }
+
+    public void test_chunkBounds_noWhitespace() {
+        assertEquals("[0, 10]", Arrays.toString(
+                SignatureCalculator.chunkBounds("abcdefghij", 3)));
+        // no whitespace after the boundary
+        assertEquals("[0, 4, 15]", Arrays.toString(
+                SignatureCalculator.chunkBounds("aaaa bbbbbbbbbb", 3)));
+    }
+
+    public void test_chunkBounds_shortText() {
+        assertEquals("[0, 5]", Arrays.toString(
+                SignatureCalculator.chunkBounds("aa bb", 5)));
+        assertEquals("[0, 5]", Arrays.toString(
+                SignatureCalculator.chunkBounds("aa bb", 10)));
+        assertEquals("[0, 0]", Arrays.toString(
+                SignatureCalculator.chunkBounds("", 10)));
+    }
+}
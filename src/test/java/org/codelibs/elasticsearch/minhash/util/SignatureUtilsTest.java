@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.elasticsearch.minhash.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.util.BytesRef;
+
+import junit.framework.TestCase;
+
+public class SignatureUtilsTest extends TestCase {
+
+    public void test_countDifferentBits() {
+        final Random random = new Random(0);
+        // word counts around the unrolled loop of four words
+        for (int numWords = 0; numWords <= 9; numWords++) {
+            final long[] words1 = randomWords(random, numWords);
+            final long[] words2 = randomWords(random, numWords);
+            int expected = 0;
+            for (int i = 0; i < numWords; i++) {
+                expected += Long.bitCount(words1[i] ^ words2[i]);
+            }
+            assertEquals(expected, SignatureUtils.countDifferentBits(words1,
+                    words2, numWords));
+            assertEquals(expected, SignatureUtils.countDifferentBits(words1,
+                    words2, numWords, expected));
+            assertEquals(expected, SignatureUtils.countDifferentBits(words1,
+                    words2, numWords, Integer.MAX_VALUE));
+            assertEquals(0, SignatureUtils.countDifferentBits(words1, words1,
+                    numWords));
+        }
+    }
+
+    public void test_countDifferentBits_numWords() {
+        // words after numWords are not counted
+        final long[] words1 = new long[6];
+        final long[] words2 = { 1L, 3L, 0L, 0L, 0L, -1L };
+        assertEquals(3,
+                SignatureUtils.countDifferentBits(words1, words2, 5));
+        assertEquals(3,
+                SignatureUtils.countDifferentBits(words1, words2, 5, 64));
+    }
+
+    public void test_countDifferentBits_limit() {
+        final long[] words1 = new long[9];
+        final long[] words2 = new long[9];
+        words2[0] = -1L;
+        words2[4] = -1L;
+        words2[8] = 1L;
+        // stops after the first four words
+        assertEquals(64, SignatureUtils.countDifferentBits(words1, words2, 9,
+                10));
+        assertEquals(128, SignatureUtils.countDifferentBits(words1, words2, 9,
+                64));
+        // the remaining word is counted without a check
+        assertEquals(129, SignatureUtils.countDifferentBits(words1, words2, 9,
+                128));
+        // -1 when no signature is similar enough
+        assertEquals(64, SignatureUtils.countDifferentBits(words1, words2, 9,
+                -1));
+    }
+
+    public void test_toWords() {
+        final Random random = new Random(0);
+        for (int length = 0; length <= 17; length++) {
+            final byte[] src = new byte[length + 3];
+            random.nextBytes(src);
+            final long[] expected = new long[SignatureUtils.numWords(length)];
+            for (int i = 0; i < length; i++) {
+                expected[i >>> 3] |= (src[3 + i] & 0xffL) << ((i & 7) * 8);
+            }
+            // unused bits of the last word are cleared
+            final long[] words = new long[expected.length];
+            Arrays.fill(words, -1L);
+            SignatureUtils.toWords(src, 3, length, words);
+            assertEquals(Arrays.toString(expected), Arrays.toString(words));
+
+            final byte[] value = Arrays.copyOfRange(src, 3, 3 + length);
+            Arrays.fill(words, -1L);
+            SignatureUtils.toWords(value, length, words);
+            assertEquals(Arrays.toString(expected), Arrays.toString(words));
+        }
+    }
+
+    public void test_bandHash() {
+        final Random random = new Random(0);
+        final byte[] signature1 = new byte[16];
+        random.nextBytes(signature1);
+        // the same bits 48 to 95, which cross the first word
+        final byte[] signature2 = signature1.clone();
+        for (int i = 0; i < 6; i++) {
+            signature2[i] ^= (byte) 0xff;
+        }
+        for (int i = 12; i < 16; i++) {
+            signature2[i] ^= (byte) 0xff;
+        }
+        final long[] words1 = new long[2];
+        final long[] words2 = new long[2];
+        SignatureUtils.toWords(signature1, signature1.length, words1);
+        SignatureUtils.toWords(signature2, signature2.length, words2);
+        assertEquals(SignatureUtils.bandHash(words1, 1, 48),
+                SignatureUtils.bandHash(words2, 1, 48));
+        assertFalse(SignatureUtils.bandHash(words1, 0, 48) == SignatureUtils
+                .bandHash(words2, 0, 48));
+        // bands with the same bits have different hashes
+        final long[] zero = new long[2];
+        assertFalse(SignatureUtils.bandHash(zero, 0, 32) == SignatureUtils
+                .bandHash(zero, 1, 32));
+        // a band of 64 bits and more
+        assertEquals(SignatureUtils.bandHash(words1, 0, 128),
+                SignatureUtils.bandHash(words1.clone(), 0, 128));
+        assertFalse(SignatureUtils.bandHash(words1, 0, 128) == SignatureUtils
+                .bandHash(words2, 0, 128));
+    }
+
+    public void test_bandTerm() {
+        final byte[] signature = { 0x05, (byte) 0xf0 };
+        assertEquals(new BytesRef(new byte[] { 0, 0, 0x05 }),
+                SignatureUtils.bandTerm(signature, 0, 4));
+        assertEquals(new BytesRef(new byte[] { 0, 1, 0 }),
+                SignatureUtils.bandTerm(signature, 1, 4));
+        assertEquals(new BytesRef(new byte[] { 0, 3, 0x0f }),
+                SignatureUtils.bandTerm(signature, 3, 4));
+        // rows which are not a multiple of 8
+        assertEquals(new BytesRef(new byte[] { 0, 0, 0x05, 0x10 }),
+                SignatureUtils.bandTerm(signature, 0, 13));
+        // the band number is big-endian
+        final byte[] large = new byte[64];
+        large[63] = (byte) 0x80;
+        assertEquals(new BytesRef(new byte[] { 1, (byte) 0xff, 1 }),
+                SignatureUtils.bandTerm(large, 511, 1));
+    }
+
+    private static long[] randomWords(final Random random,
+            final int numWords) {
+        final long[] words = new long[numWords];
+        for (int i = 0; i < numWords; i++) {
+            words[i] = random.nextLong();
+        }
+        return words;
+    }
+}